@@ -0,0 +1,152 @@
+package org.msgpack.jruby;
+
+
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyString;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+
+/**
+ * Decodes a batch of independent values on several threads at once. The
+ * batch is either an array of strings that contain one value each, or a
+ * single string of concatenated values, whose boundaries are found by
+ * skipping over the values before any of them are decoded.
+ *
+ * The values are split into contiguous ranges, one per thread, and the
+ * calling thread decodes the first range itself. Every range gets its own
+ * Decoder, the compiled options are shared. Transcoding to the default
+ * internal encoding runs on the pool threads too, but extension unpackers
+ * are Ruby code that may not expect to run on other threads, so when any
+ * are registered everything is decoded on the calling thread.
+ *
+ * :max_bytes applies to every value on its own, like it does to #unpack.
+ */
+class BatchUnpacker {
+  private static final int MIN_VALUES_PER_TASK = 16;
+
+  private final Ruby runtime;
+  private final ExecutorService executor;
+  private final RubyObjectUnpacker.CompiledOptions options;
+
+  public BatchUnpacker(Ruby runtime, ExecutorService executor, RubyObjectUnpacker.CompiledOptions options) {
+    this.runtime = runtime;
+    this.executor = executor;
+    this.options = options;
+  }
+
+  public RubyArray unpack(IRubyObject batch, int parallelism) {
+    List<ByteBuffer> values = split(batch);
+    int count = values.size();
+    IRubyObject[] results = new IRubyObject[count];
+    int tasks = Math.max(1, Math.min(parallelism, count / MIN_VALUES_PER_TASK));
+    if (options.extensions.hasUnpackers()) {
+      tasks = 1;
+    }
+    List<Future<?>> futures = new ArrayList<Future<?>>(tasks - 1);
+    for (int i = 1; i < tasks; i++) {
+      futures.add(executor.submit(new Range(values, results, i * count / tasks, (i + 1) * count / tasks)));
+    }
+    try {
+      new Range(values, results, 0, count / tasks).call();
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw runtime.newThreadError("Interrupted while unpacking a batch");
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw runtime.newRuntimeError(cause.toString());
+      }
+    } finally {
+      for (Future<?> future : futures) {
+        future.cancel(false);
+      }
+    }
+    return RubyArray.newArrayNoCopy(runtime, results);
+  }
+
+  private List<ByteBuffer> split(IRubyObject batch) {
+    List<ByteBuffer> values = new ArrayList<ByteBuffer>();
+    if (batch instanceof RubyArray) {
+      RubyArray array = (RubyArray) batch;
+      for (int i = 0; i < array.size(); i++) {
+        ByteBuffer value = wrap(array.eltInternal(i).convertToString());
+        options.checkBytes(runtime, value.remaining());
+        values.add(value);
+      }
+    } else {
+      ByteBuffer buffer = wrap(batch.convertToString());
+      Decoder decoder = new Decoder(runtime, options, buffer);
+      try {
+        while (buffer.hasRemaining()) {
+          int start = buffer.position();
+          decoder.skip();
+          ByteBuffer value = buffer.duplicate();
+          value.position(start);
+          value.limit(buffer.position());
+          options.checkBytes(runtime, value.remaining());
+          values.add(value);
+        }
+      } catch (BufferUnderflowException bue) {
+        throw prematureEnd();
+      }
+    }
+    return values;
+  }
+
+  private ByteBuffer wrap(RubyString str) {
+    ByteList bytes = str.getByteList();
+    return ByteBuffer.wrap(bytes.unsafeBytes(), bytes.begin(), bytes.length());
+  }
+
+  private RaiseException prematureEnd() {
+    RubyClass unpackErrorClass = runtime.getModule("MessagePack").getClass("UnpackError");
+    return runtime.newRaiseException(unpackErrorClass, "Premature end of data");
+  }
+
+  private class Range implements Callable<Void> {
+    private final List<ByteBuffer> values;
+    private final IRubyObject[] results;
+    private final int from;
+    private final int to;
+
+    Range(List<ByteBuffer> values, IRubyObject[] results, int from, int to) {
+      this.values = values;
+      this.results = results;
+      this.from = from;
+      this.to = to;
+    }
+
+    public Void call() {
+      Decoder decoder = new Decoder(runtime, options);
+      for (int i = from; i < to; i++) {
+        decoder.setBuffer(values.get(i));
+        try {
+          results[i] = decoder.nextValue();
+        } catch (BufferUnderflowException bue) {
+          throw prematureEnd();
+        }
+      }
+      return null;
+    }
+  }
+}
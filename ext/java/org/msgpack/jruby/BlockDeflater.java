@@ -0,0 +1,137 @@
+package org.msgpack.jruby;
+
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import org.jruby.Ruby;
+import org.jruby.RubyString;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+
+/**
+ * Compresses what MessagePack::Packer writes to its IO as a stream of
+ * independent deflate blocks. Each block is the compressed and uncompressed
+ * sizes as 32 bit big endian integers followed by raw deflate data, so
+ * blocks can be compressed (and inflated) without knowing about each other.
+ *
+ * Blocks are compressed on the shared executor, at most parallelism at a
+ * time, and written to the IO in order on the calling thread. With a
+ * parallelism of one everything happens on the calling thread.
+ */
+class BlockDeflater {
+  public static final int HEADER_SIZE = 8;
+
+  private final ExecutorService executor;
+  private final int level;
+  private final int parallelism;
+  private final Deque<Future<byte[]>> pending;
+
+  public BlockDeflater(ExecutorService executor, int level, int parallelism) {
+    this.executor = executor;
+    this.level = level;
+    this.parallelism = parallelism;
+    this.pending = new ArrayDeque<Future<byte[]>>();
+  }
+
+  /**
+   * Compresses the contents of the encoder as one block and writes the
+   * blocks that are done, waiting for the oldest one when too many are
+   * in flight.
+   */
+  public void write(ThreadContext ctx, IRubyObject io, Encoder encoder) {
+    byte[] bytes = encoder.toByteArray();
+    if (parallelism == 1) {
+      writeBlock(ctx, io, compress(bytes, level));
+      return;
+    }
+    pending.add(executor.submit(new Block(bytes, level)));
+    while (!pending.isEmpty() && (pending.size() >= parallelism || pending.peek().isDone())) {
+      writeBlock(ctx, io, take(ctx.getRuntime()));
+    }
+  }
+
+  /**
+   * Waits for and writes all blocks that are in flight.
+   */
+  public void drain(ThreadContext ctx, IRubyObject io) {
+    while (!pending.isEmpty()) {
+      writeBlock(ctx, io, take(ctx.getRuntime()));
+    }
+  }
+
+  public void discard() {
+    for (Future<byte[]> future : pending) {
+      future.cancel(false);
+    }
+    pending.clear();
+  }
+
+  private byte[] take(Ruby runtime) {
+    Future<byte[]> future = pending.poll();
+    try {
+      return future.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      discard();
+      throw runtime.newThreadError("Interrupted while compressing");
+    } catch (ExecutionException ee) {
+      discard();
+      throw runtime.newRuntimeError(ee.getCause().toString());
+    }
+  }
+
+  private static void writeBlock(ThreadContext ctx, IRubyObject io, byte[] block) {
+    io.callMethod(ctx, "write", RubyString.newString(ctx.getRuntime(), new ByteList(block, false)));
+  }
+
+  static byte[] compress(byte[] bytes, int level) {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      deflater.setInput(bytes);
+      deflater.finish();
+      byte[] block = new byte[HEADER_SIZE + bytes.length + bytes.length / 1000 + 64];
+      int size = HEADER_SIZE;
+      while (!deflater.finished()) {
+        if (size == block.length) {
+          block = Arrays.copyOf(block, 2 * block.length);
+        }
+        size += deflater.deflate(block, size, block.length - size);
+      }
+      writeInt(block, 0, size - HEADER_SIZE);
+      writeInt(block, 4, bytes.length);
+      return size == block.length ? block : Arrays.copyOf(block, size);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static void writeInt(byte[] block, int offset, int n) {
+    block[offset] = (byte) (n >>> 24);
+    block[offset + 1] = (byte) (n >>> 16);
+    block[offset + 2] = (byte) (n >>> 8);
+    block[offset + 3] = (byte) n;
+  }
+
+  private static class Block implements Callable<byte[]> {
+    private final byte[] bytes;
+    private final int level;
+
+    public Block(byte[] bytes, int level) {
+      this.bytes = bytes;
+      this.level = level;
+    }
+
+    public byte[] call() {
+      return compress(bytes, level);
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package org.msgpack.jruby;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.jruby.Ruby;
+
+
+/**
+ * Reads the blocks written by BlockDeflater and returns their uncompressed
+ * contents. Blocks are inflated straight into the caller's buffer, a block
+ * is never held in memory as a whole, and the uncompressed size in its
+ * header is checked against what was actually inflated.
+ */
+class BlockInflaterInputStream extends InputStream {
+  private final Ruby runtime;
+  private final InputStream in;
+  private final Inflater inflater;
+  private final byte[] input;
+  private final byte[] header;
+  private final byte[] scratch;
+  private int compressedRemaining;
+  private int uncompressedRemaining;
+  private boolean inBlock;
+
+  public BlockInflaterInputStream(Ruby runtime, InputStream in) {
+    this.runtime = runtime;
+    this.in = in;
+    this.inflater = new Inflater(true);
+    this.input = new byte[16 * 1024];
+    this.header = new byte[BlockDeflater.HEADER_SIZE];
+    this.scratch = new byte[1];
+  }
+
+  @Override
+  public int read() throws IOException {
+    int n = read(scratch, 0, 1);
+    return n < 0 ? -1 : scratch[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (true) {
+      if (!inBlock && !nextBlock()) {
+        return -1;
+      }
+      try {
+        int n = inflater.inflate(b, off, Math.min(len, uncompressedRemaining));
+        uncompressedRemaining -= n;
+        if (inflater.finished() || uncompressedRemaining == 0) {
+          endBlock();
+        } else if (n == 0 && inflater.needsInput()) {
+          fillInput();
+        } else if (n == 0 && inflater.needsDictionary()) {
+          throw corrupt("unexpected dictionary");
+        }
+        if (n > 0) {
+          return n;
+        }
+      } catch (DataFormatException dfe) {
+        throw corrupt(dfe.getMessage());
+      }
+    }
+  }
+
+  private boolean nextBlock() throws IOException {
+    int n = readFully(header, 0, header.length);
+    if (n == 0) {
+      return false;
+    } else if (n < header.length) {
+      throw new EOFException("Truncated compressed block");
+    }
+    compressedRemaining = readInt(0);
+    uncompressedRemaining = readInt(4);
+    if (compressedRemaining < 0 || uncompressedRemaining < 0) {
+      throw corrupt("bad block header");
+    }
+    inflater.reset();
+    inBlock = true;
+    if (uncompressedRemaining == 0) {
+      endBlock();
+    }
+    return true;
+  }
+
+  /**
+   * Runs the inflater to the end of the block, which must be exactly where
+   * both sizes in the header say it is.
+   */
+  private void endBlock() throws IOException {
+    try {
+      while (!inflater.finished()) {
+        if (inflater.inflate(scratch) > 0) {
+          throw corrupt("more data than the header says");
+        } else if (inflater.needsInput()) {
+          fillInput();
+        } else if (inflater.needsDictionary()) {
+          throw corrupt("unexpected dictionary");
+        }
+      }
+    } catch (DataFormatException dfe) {
+      throw corrupt(dfe.getMessage());
+    }
+    if (uncompressedRemaining != 0) {
+      throw corrupt("less data than the header says");
+    } else if (compressedRemaining != 0 || inflater.getRemaining() != 0) {
+      throw corrupt("trailing data");
+    }
+    inBlock = false;
+  }
+
+  private void fillInput() throws IOException {
+    if (compressedRemaining == 0) {
+      throw corrupt("less data than the header says");
+    }
+    int n = in.read(input, 0, Math.min(input.length, compressedRemaining));
+    if (n < 0) {
+      throw new EOFException("Truncated compressed block");
+    }
+    compressedRemaining -= n;
+    inflater.setInput(input, 0, n);
+  }
+
+  private int readFully(byte[] b, int off, int len) throws IOException {
+    int total = 0;
+    while (total < len) {
+      int n = in.read(b, off + total, len - total);
+      if (n < 0) {
+        break;
+      }
+      total += n;
+    }
+    return total;
+  }
+
+  private int readInt(int offset) {
+    return ((header[offset] & 0xff) << 24) | ((header[offset + 1] & 0xff) << 16) | ((header[offset + 2] & 0xff) << 8) | (header[offset + 3] & 0xff);
+  }
+
+  private RuntimeException corrupt(String reason) {
+    return Decoder.unpackError(runtime, String.format("Corrupt compressed block: %s", reason));
+  }
+
+  @Override
+  public void close() throws IOException {
+    inflater.end();
+  }
+}
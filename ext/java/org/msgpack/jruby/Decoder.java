@@ -0,0 +1,892 @@
+package org.msgpack.jruby;
+
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyBignum;
+import org.jruby.RubyFloat;
+import org.jruby.RubyString;
+import org.jruby.RubyArray;
+import org.jruby.RubyHash;
+import org.jruby.RubyTime;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.util.ByteList;
+import org.jruby.util.StringSupport;
+
+import org.joda.time.DateTime;
+
+
+/**
+ * Decodes MessagePack data from a byte buffer straight into Ruby objects,
+ * without going through the intermediate Value tree of msgpack-java.
+ *
+ * The data is either a single buffer, the segments of a FeedBuffer, in
+ * which case objects can span segment boundaries, or the buffer of a
+ * StreamBuffer that is refilled as it runs out. Running out of data in the
+ * middle of an object throws a java.nio.BufferUnderflowException, the
+ * position of the buffer is then undefined and it is up to the caller to
+ * rewind it.
+ */
+class Decoder {
+  private static final byte[] OBJECT_TYPES = objectTypes();
+  private static final int MIN_SHARED_BINARY_SIZE = 256;
+  private static final int HASH_BUCKETS = 11;
+  private static final int HASH_DENSITY = 5;
+
+  private final Ruby runtime;
+  private final RubyObjectUnpacker.CompiledOptions options;
+  private final FeedBuffer feed;
+  private final FeedScanner scanner;
+  private final StreamBuffer stream;
+  private ByteBuffer buffer;
+  private int depth;
+  private boolean sharedInput;
+  private RubyString source;
+  private RubyHash reusedHash;
+  private RubyArray reusedArray;
+  private boolean topLevel;
+  private long[] objectCounts;
+  private long consumed;
+  private int segmentStart;
+
+  public Decoder(Ruby runtime, RubyObjectUnpacker.CompiledOptions options) {
+    this(runtime, options, (FeedBuffer) null);
+  }
+
+  public Decoder(Ruby runtime, RubyObjectUnpacker.CompiledOptions options, ByteBuffer buffer) {
+    this(runtime, options, (FeedBuffer) null);
+    this.buffer = buffer;
+  }
+
+  public Decoder(Ruby runtime, RubyObjectUnpacker.CompiledOptions options, FeedBuffer feed) {
+    this.runtime = runtime;
+    this.options = options;
+    this.feed = feed;
+    this.scanner = (feed == null) ? null : new FeedScanner(feed, this);
+    this.stream = null;
+    this.sharedInput = feed != null;
+  }
+
+  public Decoder(Ruby runtime, RubyObjectUnpacker.CompiledOptions options, StreamBuffer stream) {
+    this.runtime = runtime;
+    this.options = options;
+    this.feed = null;
+    this.scanner = null;
+    this.stream = stream;
+    this.buffer = stream.getBuffer();
+  }
+
+  /**
+   * Lets binary values share the bytes of the string that the buffer wraps,
+   * which is then marked as shared so that it's copied before it's changed.
+   */
+  public void shareInput(RubyString source) {
+    this.sharedInput = true;
+    this.source = source;
+  }
+
+  /**
+   * Makes #nextValue decode top level maps and arrays into the given hash
+   * and array, which are cleared first, instead of into new ones. Nested
+   * containers are always new. Either can be null.
+   */
+  public void reuse(RubyHash hash, RubyArray array) {
+    this.reusedHash = hash;
+    this.reusedArray = array;
+  }
+
+  public void setBuffer(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  public ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  public boolean hasNext() {
+    return buffer != null && buffer.hasRemaining();
+  }
+
+  /**
+   * Returns the next object in the feed, or null when it isn't complete.
+   * An incomplete object is scanned instead of decoded on the following
+   * calls, and only decoded again once the scan has found its end.
+   *
+   * When an object can't be decoded it is skipped, so that the objects
+   * after it can still be read, unless its end can't be found, in which
+   * case everything that has been fed is dropped.
+   */
+  public IRubyObject nextFromFeed() {
+    try {
+      if (scanner.isScanning() && !scanner.scan()) {
+        return null;
+      }
+      buffer = feed.mark();
+      try {
+        IRubyObject value = nextValue();
+        feed.release();
+        scanner.reset();
+        return value;
+      } catch (BufferUnderflowException bue) {
+        feed.reset();
+        scanner.scan();
+        return null;
+      }
+    } catch (RuntimeException e) {
+      dropBrokenObject();
+      throw e;
+    }
+  }
+
+  private void dropBrokenObject() {
+    scanner.reset();
+    feed.reset();
+    buffer = feed.mark();
+    try {
+      skip();
+      feed.release();
+    } catch (RuntimeException e) {
+      feed.clear();
+    }
+  }
+
+  /**
+   * The number of bytes the feed needs at the very least before the next
+   * object is complete, or zero when it already is.
+   */
+  public long bytesNeeded() {
+    return scanner.bytesNeeded();
+  }
+
+  public void clearFeed() {
+    feed.clear();
+    scanner.reset();
+  }
+
+  public IRubyObject nextFromStream(ThreadContext ctx) throws IOException {
+    while (true) {
+      int start = buffer.position();
+      try {
+        return nextValue();
+      } catch (BufferUnderflowException bue) {
+        buffer.position(start);
+        int capacity = buffer.capacity();
+        if (!stream.fill(ctx)) {
+          return null;
+        }
+        buffer = stream.getBuffer();
+        if (buffer.capacity() > capacity && options.metrics.isEnabled()) {
+          options.metrics.bufferGrown();
+        }
+      }
+    }
+  }
+
+  private void nextSegment() {
+    if (feed == null) {
+      throw new BufferUnderflowException();
+    }
+    if (objectCounts != null) {
+      consumed += buffer.limit() - segmentStart;
+      segmentStart = 0;
+    }
+    buffer = feed.advance();
+  }
+
+  private byte readByte() {
+    if (!buffer.hasRemaining()) {
+      nextSegment();
+    }
+    return buffer.get();
+  }
+
+  private short readShort() {
+    if (buffer.remaining() >= 2) {
+      return buffer.getShort();
+    }
+    return (short) (((readByte() & 0xff) << 8) | (readByte() & 0xff));
+  }
+
+  private int readInt() {
+    if (buffer.remaining() >= 4) {
+      return buffer.getInt();
+    }
+    return ((readShort() & 0xffff) << 16) | (readShort() & 0xffff);
+  }
+
+  private long readLong() {
+    if (buffer.remaining() >= 8) {
+      return buffer.getLong();
+    }
+    return ((readInt() & 0xffffffffL) << 32) | (readInt() & 0xffffffffL);
+  }
+
+  private void readBytes(byte[] dst) {
+    int offset = 0;
+    while (true) {
+      int n = Math.min(buffer.remaining(), dst.length - offset);
+      buffer.get(dst, offset, n);
+      offset += n;
+      if (offset == dst.length) {
+        return;
+      }
+      nextSegment();
+    }
+  }
+
+  public IRubyObject next() {
+    return decode(readByte() & 0xff);
+  }
+
+  /**
+   * Decodes a top level value, and records it in the metrics when they are
+   * enabled. The objects are counted locally and added to the metrics once
+   * the whole value has been decoded.
+   */
+  public IRubyObject nextValue() {
+    topLevel = reusedHash != null || reusedArray != null;
+    if (!options.metrics.isEnabled()) {
+      return next();
+    }
+    long startTime = startCounting();
+    try {
+      IRubyObject value = next();
+      finishCounting(startTime);
+      return value;
+    } finally {
+      objectCounts = null;
+    }
+  }
+
+  /**
+   * Starts recording metrics for a value that the caller decodes piece by
+   * piece, and returns the start time to pass to {@link #finishCounting}.
+   */
+  long startCounting() {
+    if (!options.metrics.isEnabled()) {
+      return 0;
+    }
+    objectCounts = new long[Metrics.OBJECT_TYPES];
+    consumed = 0;
+    segmentStart = buffer.position();
+    return System.nanoTime();
+  }
+
+  void finishCounting(long startTime) {
+    if (objectCounts != null) {
+      options.metrics.unpacked(consumed + buffer.position() - segmentStart, System.nanoTime() - startTime, objectCounts);
+      objectCounts = null;
+    }
+  }
+
+  private static byte[] objectTypes() {
+    byte[] types = new byte[256];
+    for (int b = 0; b < 256; b++) {
+      if (b <= 0x7f || b >= 0xe0 || (b >= 0xcc && b <= 0xd3)) {
+        types[b] = Metrics.INTEGER;
+      } else if (b <= 0x8f || b == 0xde || b == 0xdf) {
+        types[b] = Metrics.MAP;
+      } else if (b <= 0x9f || b == 0xdc || b == 0xdd) {
+        types[b] = Metrics.ARRAY;
+      } else if (b <= 0xbf || (b >= 0xd9 && b <= 0xdb)) {
+        types[b] = Metrics.STRING;
+      } else if (b >= 0xc4 && b <= 0xc6) {
+        types[b] = Metrics.BINARY;
+      } else if (b == 0xc2 || b == 0xc3) {
+        types[b] = Metrics.BOOLEAN;
+      } else if (b == 0xca || b == 0xcb) {
+        types[b] = Metrics.FLOAT;
+      } else if (b == 0xc0) {
+        types[b] = Metrics.NIL;
+      } else {
+        types[b] = Metrics.EXTENSION;
+      }
+    }
+    return types;
+  }
+
+  private int peekByte() {
+    if (!buffer.hasRemaining()) {
+      nextSegment();
+    }
+    return buffer.get(buffer.position()) & 0xff;
+  }
+
+  public boolean isNextMap() {
+    int b = peekByte();
+    return (b >= 0x80 && b <= 0x8f) || b == 0xde || b == 0xdf;
+  }
+
+  public boolean isNextArray() {
+    int b = peekByte();
+    return (b >= 0x90 && b <= 0x9f) || b == 0xdc || b == 0xdd;
+  }
+
+  public boolean isNextRaw() {
+    int b = peekByte();
+    return (b >= 0xa0 && b <= 0xbf) || (b >= 0xd9 && b <= 0xdb) || (b >= 0xc4 && b <= 0xc6);
+  }
+
+  public int readMapHeader() {
+    int b = readByte() & 0xff;
+    int size;
+    if (b >= 0x80 && b <= 0x8f) {
+      size = b & 0x0f;
+    } else if (b == 0xde) {
+      size = readShort() & 0xffff;
+    } else if (b == 0xdf) {
+      size = readLength32();
+    } else {
+      throw unpackError(String.format("Expected a map but got 0x%02x", b));
+    }
+    checkMapSize(size);
+    if (objectCounts != null) {
+      objectCounts[Metrics.MAP]++;
+    }
+    return size;
+  }
+
+  public int readArrayHeader() {
+    int b = readByte() & 0xff;
+    int size;
+    if (b >= 0x90 && b <= 0x9f) {
+      size = b & 0x0f;
+    } else if (b == 0xdc) {
+      size = readShort() & 0xffff;
+    } else if (b == 0xdd) {
+      size = readLength32();
+    } else {
+      throw unpackError(String.format("Expected an array but got 0x%02x", b));
+    }
+    checkArraySize(size);
+    return size;
+  }
+
+  public int readRawHeader() {
+    int b = readByte() & 0xff;
+    if (b >= 0xa0 && b <= 0xbf) {
+      return b & 0x1f;
+    } else if (b == 0xd9 || b == 0xc4) {
+      return readByte() & 0xff;
+    } else if (b == 0xda || b == 0xc5) {
+      return readShort() & 0xffff;
+    } else if (b == 0xdb || b == 0xc6) {
+      return readLength32();
+    } else {
+      throw unpackError(String.format("Expected a raw but got 0x%02x", b));
+    }
+  }
+
+  public void skipBytes(int n) {
+    while (n > buffer.remaining()) {
+      n -= buffer.remaining();
+      buffer.position(buffer.limit());
+      nextSegment();
+    }
+    buffer.position(buffer.position() + n);
+  }
+
+  public void skip() {
+    long remaining = 1;
+    while (remaining > 0) {
+      remaining--;
+      int b = readByte() & 0xff;
+      if (b <= 0x7f || b >= 0xe0) {
+        continue;
+      } else if (b <= 0x8f) {
+        remaining += 2 * (b & 0x0f);
+        continue;
+      } else if (b <= 0x9f) {
+        remaining += b & 0x0f;
+        continue;
+      } else if (b <= 0xbf) {
+        skipBytes(b & 0x1f);
+        continue;
+      }
+      switch (b) {
+      case 0xc0: case 0xc2: case 0xc3: break;
+      case 0xcc: case 0xd0: skipBytes(1); break;
+      case 0xcd: case 0xd1: skipBytes(2); break;
+      case 0xca: case 0xce: case 0xd2: skipBytes(4); break;
+      case 0xcb: case 0xcf: case 0xd3: skipBytes(8); break;
+      case 0xd9: case 0xc4: skipBytes(readByte() & 0xff); break;
+      case 0xda: case 0xc5: skipBytes(readShort() & 0xffff); break;
+      case 0xdb: case 0xc6: skipBytes(readLength32()); break;
+      case 0xdc: remaining += readShort() & 0xffff; break;
+      case 0xdd: remaining += readLength32(); break;
+      case 0xde: remaining += 2 * (readShort() & 0xffff); break;
+      case 0xdf: remaining += 2L * readLength32(); break;
+      case 0xd4: skipBytes(2); break;
+      case 0xd5: skipBytes(3); break;
+      case 0xd6: skipBytes(5); break;
+      case 0xd7: skipBytes(9); break;
+      case 0xd8: skipBytes(17); break;
+      case 0xc7: skipBytes((readByte() & 0xff) + 1); break;
+      case 0xc8: skipBytes((readShort() & 0xffff) + 1); break;
+      case 0xc9: skipBytes(readLength32()); skipBytes(1); break;
+      default: throw unpackError(String.format("Illegal byte sequence: 0x%02x", b));
+      }
+    }
+  }
+
+  private IRubyObject decode(int b) {
+    if (objectCounts != null) {
+      objectCounts[OBJECT_TYPES[b]]++;
+    }
+    if (b <= 0x7f) {
+      return newFixnum(b);
+    } else if (b >= 0xe0) {
+      return newFixnum(b - 0x100);
+    } else if (b <= 0x8f) {
+      return decodeMap(b & 0x0f);
+    } else if (b <= 0x9f) {
+      return decodeArray(b & 0x0f);
+    } else if (b <= 0xbf) {
+      return decodeRaw(b & 0x1f);
+    }
+    switch (b) {
+    case 0xc0: return runtime.getNil();
+    case 0xc2: return runtime.getFalse();
+    case 0xc3: return runtime.getTrue();
+    case 0xca: return RubyFloat.newFloat(runtime, Float.intBitsToFloat(readInt()));
+    case 0xcb: return RubyFloat.newFloat(runtime, Double.longBitsToDouble(readLong()));
+    case 0xcc: return newFixnum(readByte() & 0xffL);
+    case 0xcd: return newFixnum(readShort() & 0xffffL);
+    case 0xce: return newFixnum(readInt() & 0xffffffffL);
+    case 0xcf: return decodeUnsignedLong(readLong());
+    case 0xd0: return newFixnum(readByte());
+    case 0xd1: return newFixnum(readShort());
+    case 0xd2: return newFixnum(readInt());
+    case 0xd3: return newFixnum(readLong());
+    case 0xd9: return decodeRaw(readByte() & 0xff);
+    case 0xda: return decodeRaw(readShort() & 0xffff);
+    case 0xdb: return decodeRaw(readLength32());
+    case 0xc4: return decodeBinary(readByte() & 0xff);
+    case 0xc5: return decodeBinary(readShort() & 0xffff);
+    case 0xc6: return decodeBinary(readLength32());
+    case 0xdc: return decodeArray(readShort() & 0xffff);
+    case 0xdd: return decodeArray(readLength32());
+    case 0xde: return decodeMap(readShort() & 0xffff);
+    case 0xdf: return decodeMap(readLength32());
+    case 0xd4: return decodeExt(1);
+    case 0xd5: return decodeExt(2);
+    case 0xd6: return decodeExt(4);
+    case 0xd7: return decodeExt(8);
+    case 0xd8: return decodeExt(16);
+    case 0xc7: return decodeExt(readByte() & 0xff);
+    case 0xc8: return decodeExt(readShort() & 0xffff);
+    case 0xc9: return decodeExt(readLength32());
+    default: throw unpackError(String.format("Illegal byte sequence: 0x%02x", b));
+    }
+  }
+
+  private IRubyObject decodeExt(int size) {
+    int type = readByte();
+    ExtensionRegistry.Entry extension = options.extensions.forType(type);
+    if (extension == null && type == -1) {
+      return decodeTimestamp(size);
+    } else if (extension == null) {
+      throw unpackError(String.format("Unknown extension type: %d", type));
+    }
+    checkStringSize(size);
+    ensureAvailable(size);
+    byte[] bytes = new byte[size];
+    readBytes(bytes);
+    return extension.unpack(runtime.getCurrentContext(), RubyString.newStringNoCopy(runtime, bytes));
+  }
+
+  private int readLength32() {
+    return checkLength32(readInt());
+  }
+
+  int checkLength32(int length) {
+    if (length < 0) {
+      throw unpackError(String.format("Length too large: %d", length & 0xffffffffL));
+    }
+    return length;
+  }
+
+  private IRubyObject newFixnum(long value) {
+    return options.fixnums.get(runtime, value);
+  }
+
+  private IRubyObject decodeUnsignedLong(long l) {
+    if (l < 0) {
+      return RubyBignum.newBignum(runtime, BigInteger.valueOf(l & Long.MAX_VALUE).setBit(63));
+    } else {
+      return newFixnum(l);
+    }
+  }
+
+  private IRubyObject decodeRaw(int size) {
+    checkStringSize(size);
+    ensureAvailable(size);
+    byte[] bytes = new byte[size];
+    readBytes(bytes);
+    return newString(bytes);
+  }
+
+  /**
+   * Binary values become ASCII-8BIT strings and are never transcoded. When
+   * the input belongs to the caller (a string given to #unpack or #feed)
+   * large values share its bytes instead of being copied.
+   */
+  private IRubyObject decodeBinary(int size) {
+    checkStringSize(size);
+    ensureAvailable(size);
+    RubyString string;
+    if (sharedInput && size >= MIN_SHARED_BINARY_SIZE && buffer.hasArray() && buffer.remaining() >= size) {
+      if (source != null) {
+        source.setByteListShared();
+        source = null;
+      }
+      string = RubyString.newString(runtime, new ByteList(buffer.array(), buffer.arrayOffset() + buffer.position(), size, false));
+      string.setByteListShared();
+      buffer.position(buffer.position() + size);
+    } else {
+      byte[] bytes = new byte[size];
+      readBytes(bytes);
+      string = RubyString.newStringNoCopy(runtime, bytes);
+    }
+    if (options.freeze) {
+      string.setFrozen(true);
+    }
+    return string;
+  }
+
+  private RubyString newString(byte[] bytes) {
+    RubyString string = newString(runtime, bytes, options);
+    if (options.freeze) {
+      string.setFrozen(true);
+    }
+    return string;
+  }
+
+  static RubyString newString(Ruby runtime, byte[] bytes, RubyObjectUnpacker.CompiledOptions options) {
+    RubyString string = RubyString.newStringNoCopy(runtime, bytes);
+    if (!options.transcode) {
+      string.setEncoding(options.encoding);
+    } else if (options.asciiPassthrough && isAscii(bytes)) {
+      string.setEncodingAndCodeRange(options.internalEncoding, StringSupport.CR_7BIT);
+    } else {
+      string.setEncoding(options.encoding);
+      string.encode_bang(runtime.getCurrentContext(), options.rubyInternalEncoding);
+      if (options.metrics.isEnabled()) {
+        options.metrics.transcoded();
+      }
+    }
+    return string;
+  }
+
+  public IRubyObject nextKey() {
+    int b = readByte() & 0xff;
+    int size;
+    if (b >= 0xa0 && b <= 0xbf) {
+      size = b & 0x1f;
+    } else if (b == 0xd9) {
+      size = readByte() & 0xff;
+    } else if (b == 0xda) {
+      size = readShort() & 0xffff;
+    } else if (b == 0xdb) {
+      size = readLength32();
+    } else {
+      IRubyObject key = decode(b);
+      if (options.symbolizeKeys) {
+        key = runtime.newSymbol(key.asString().getByteList());
+      }
+      return key;
+    }
+    checkStringSize(size);
+    if (objectCounts != null) {
+      objectCounts[Metrics.STRING]++;
+    }
+    KeyCache keyCache = options.keyCache;
+    boolean cacheable = keyCache != null && size <= KeyCache.MAX_KEY_SIZE;
+    if (cacheable && buffer.hasArray() && buffer.remaining() >= size) {
+      int position = buffer.position();
+      IRubyObject cached = keyCache.get(buffer.array(), buffer.arrayOffset() + position, size, options.stringEncoding, options.symbolizeKeys);
+      if (cached != null) {
+        buffer.position(position + size);
+        return cached;
+      }
+    }
+    ensureAvailable(size);
+    byte[] bytes = new byte[size];
+    readBytes(bytes);
+    RubyString string = newString(bytes);
+    IRubyObject key = string;
+    if (options.symbolizeKeys) {
+      key = runtime.newSymbol(string.getByteList());
+    } else if (keyCache != null) {
+      string.setFrozen(true);
+    }
+    if (cacheable) {
+      keyCache.put(bytes, options.stringEncoding, options.symbolizeKeys, key);
+    }
+    return key;
+  }
+
+  /**
+   * Reads a map key and returns the index of the candidate with the same
+   * bytes, trying the expected index first. When the key is not a raw or
+   * matches none of the candidates it is left unread and -1 is returned,
+   * this requires the data to be in a single buffer.
+   */
+  public int nextKeyIndex(byte[][] candidates, int expected) {
+    int start = buffer.position();
+    if (!isNextRaw()) {
+      return -1;
+    }
+    int size = readRawHeader();
+    if (buffer.remaining() < size) {
+      throw new BufferUnderflowException();
+    }
+    if (expected >= 0 && expected < candidates.length && matches(candidates[expected], size)) {
+      countKey();
+      buffer.position(buffer.position() + size);
+      return expected;
+    }
+    for (int i = 0; i < candidates.length; i++) {
+      if (matches(candidates[i], size)) {
+        countKey();
+        buffer.position(buffer.position() + size);
+        return i;
+      }
+    }
+    buffer.position(start);
+    return -1;
+  }
+
+  private void countKey() {
+    if (objectCounts != null) {
+      objectCounts[Metrics.STRING]++;
+    }
+  }
+
+  private boolean matches(byte[] candidate, int size) {
+    if (candidate.length != size) {
+      return false;
+    }
+    int position = buffer.position();
+    for (int i = 0; i < size; i++) {
+      if (buffer.get(position + i) != candidate[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private IRubyObject decodeTimestamp(int size) {
+    long seconds;
+    long nanoseconds;
+    switch (size) {
+    case 4:
+      seconds = readInt() & 0xffffffffL;
+      nanoseconds = 0;
+      break;
+    case 8:
+      long data64 = readLong();
+      seconds = data64 & 0x3ffffffffL;
+      nanoseconds = data64 >>> 34;
+      break;
+    case 12:
+      nanoseconds = readInt() & 0xffffffffL;
+      seconds = readLong();
+      break;
+    default:
+      throw unpackError(String.format("Invalid timestamp length: %d", size));
+    }
+    if (nanoseconds > 999999999L) {
+      throw unpackError(String.format("Invalid timestamp nanoseconds: %d", nanoseconds));
+    }
+    long millis = seconds * 1000 + nanoseconds / 1000000;
+    DateTime dateTime = new DateTime(millis, RubyTime.getLocalTimeZone(runtime));
+    return RubyTime.newTime(runtime, dateTime, nanoseconds % 1000000);
+  }
+
+  private static boolean isAscii(byte[] bytes) {
+    for (int i = 0; i < bytes.length; i++) {
+      if (bytes[i] < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private IRubyObject decodeArray(int size) {
+    checkArraySize(size);
+    ensureAvailable(size);
+    RubyArray array = null;
+    if (topLevel) {
+      array = reusedArray;
+      topLevel = false;
+    }
+    enter();
+    try {
+      if (array != null) {
+        if (array.size() > size) {
+          array.rb_clear();
+        }
+        for (int i = 0; i < size; i++) {
+          array.store(i, next());
+        }
+        return array;
+      }
+      IRubyObject[] elements = new IRubyObject[size];
+      int i = decodeIntegers(elements);
+      for (; i < size; i++) {
+        elements[i] = next();
+      }
+      return RubyArray.newArrayNoCopy(runtime, elements);
+    } finally {
+      depth--;
+    }
+  }
+
+  private IRubyObject decodeMap(int size) {
+    checkMapSize(size);
+    ensureAvailable(2L * size);
+    RubyHash hash = null;
+    if (topLevel) {
+      hash = reusedHash;
+      topLevel = false;
+    }
+    enter();
+    try {
+      if (hash != null) {
+        hash.rb_clear();
+      } else {
+        hash = newHash(size);
+      }
+      for (int i = 0; i < size; i++) {
+        IRubyObject key = nextKey();
+        IRubyObject value = next();
+        hash.fastASet(key, value);
+      }
+      return hash;
+    } finally {
+      depth--;
+    }
+  }
+
+  /**
+   * Decodes the leading integers of an array straight from the buffer,
+   * with absolute reads and a single position update, for as long as the
+   * elements are integers that fit in a Fixnum and the buffer holds at
+   * least nine bytes, which is enough for any integer format. Returns the
+   * number of elements decoded, the rest are left to #next.
+   */
+  private int decodeIntegers(IRubyObject[] elements) {
+    int position = buffer.position();
+    int limit = buffer.limit() - 9;
+    int i = 0;
+    while (i < elements.length && position <= limit) {
+      int b = buffer.get(position) & 0xff;
+      long value;
+      int length;
+      if (b <= 0x7f) {
+        value = b;
+        length = 1;
+      } else if (b >= 0xe0) {
+        value = b - 0x100;
+        length = 1;
+      } else if (b == 0xcc) {
+        value = buffer.get(position + 1) & 0xffL;
+        length = 2;
+      } else if (b == 0xcd) {
+        value = buffer.getShort(position + 1) & 0xffffL;
+        length = 3;
+      } else if (b == 0xce) {
+        value = buffer.getInt(position + 1) & 0xffffffffL;
+        length = 5;
+      } else if (b == 0xd0) {
+        value = buffer.get(position + 1);
+        length = 2;
+      } else if (b == 0xd1) {
+        value = buffer.getShort(position + 1);
+        length = 3;
+      } else if (b == 0xd2) {
+        value = buffer.getInt(position + 1);
+        length = 5;
+      } else if (b == 0xd3 || (b == 0xcf && buffer.get(position + 1) >= 0)) {
+        value = buffer.getLong(position + 1);
+        length = 9;
+      } else {
+        break;
+      }
+      elements[i++] = options.fixnums.get(runtime, value);
+      position += length;
+    }
+    buffer.position(position);
+    if (objectCounts != null) {
+      objectCounts[Metrics.INTEGER] += i;
+    }
+    return i;
+  }
+
+  /**
+   * JRuby starts a hash with 11 buckets and rehashes it when it has more
+   * than 5 entries per bucket, so larger maps get enough buckets up front.
+   */
+  private RubyHash newHash(int size) {
+    if (size > HASH_BUCKETS * HASH_DENSITY) {
+      return new RubyHash(runtime, size / HASH_DENSITY + 1);
+    }
+    return RubyHash.newHash(runtime);
+  }
+
+  private void enter() {
+    checkDepth(depth + 1);
+    depth++;
+  }
+
+  void checkDepth(int depth) {
+    if (depth > options.maxDepth) {
+      throw unpackError(String.format("Nesting depth exceeds the limit of %d", options.maxDepth));
+    }
+  }
+
+  void checkArraySize(int size) {
+    if (size > options.maxArraySize) {
+      throw unpackError(String.format("Array size %d exceeds the limit of %d", size, options.maxArraySize));
+    }
+  }
+
+  void checkMapSize(int size) {
+    if (size > options.maxMapSize) {
+      throw unpackError(String.format("Map size %d exceeds the limit of %d", size, options.maxMapSize));
+    }
+  }
+
+  void checkStringSize(int size) {
+    if (size > options.maxStringSize) {
+      throw unpackError(String.format("String size %d exceeds the limit of %d bytes", size, options.maxStringSize));
+    }
+  }
+
+  /**
+   * Throws a BufferUnderflowException before anything is allocated for a
+   * length that the remaining data can't possibly hold.
+   */
+  private void ensureAvailable(long n) {
+    if (n > buffer.remaining() && (feed == null || n > feed.size())) {
+      throw new BufferUnderflowException();
+    }
+  }
+
+  RaiseException unpackError(String message) {
+    return unpackError(runtime, message);
+  }
+
+  static RaiseException unpackError(Ruby runtime, String message) {
+    RubyClass unpackErrorClass = runtime.getModule("MessagePack").getClass("UnpackError");
+    return runtime.newRaiseException(unpackErrorClass, message);
+  }
+}
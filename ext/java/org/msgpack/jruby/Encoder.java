@@ -0,0 +1,299 @@
+package org.msgpack.jruby;
+
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import org.jruby.util.ByteList;
+
+
+/**
+ * Writes the MessagePack wire format into a growable byte array that can be
+ * reset and reused between calls.
+ */
+class Encoder {
+  private static final int DEFAULT_CAPACITY = 256;
+  private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+  private byte[] bytes;
+  private int position;
+  private int growths;
+
+  public Encoder() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public Encoder(int initialCapacity) {
+    this.bytes = new byte[Math.max(initialCapacity, 16)];
+    this.position = 0;
+  }
+
+  public int size() {
+    return position;
+  }
+
+  public byte[] toByteArray() {
+    return Arrays.copyOf(bytes, position);
+  }
+
+  public ByteList toByteList() {
+    return new ByteList(bytes, 0, position, true);
+  }
+
+  public void reset() {
+    position = 0;
+    if (bytes.length > MAX_RETAINED_CAPACITY) {
+      bytes = new byte[DEFAULT_CAPACITY];
+    }
+  }
+
+  public void truncate(int size) {
+    if (size < position) {
+      position = size;
+    }
+  }
+
+  /**
+   * Returns the number of times the buffer has grown since the last call.
+   */
+  public int takeGrowths() {
+    int n = growths;
+    growths = 0;
+    return n;
+  }
+
+  private void ensureRemaining(int n) {
+    int required = position + n;
+    if (required > bytes.length) {
+      int capacity = bytes.length;
+      while (capacity < required) {
+        capacity = capacity << 1;
+        if (capacity < 0) {
+          capacity = Integer.MAX_VALUE;
+          break;
+        }
+      }
+      bytes = Arrays.copyOf(bytes, capacity);
+      growths++;
+    }
+  }
+
+  private void putByte(int b) {
+    bytes[position++] = (byte) b;
+  }
+
+  private void putShort(int s) {
+    bytes[position++] = (byte) (s >> 8);
+    bytes[position++] = (byte) s;
+  }
+
+  private void putInt(int i) {
+    bytes[position++] = (byte) (i >> 24);
+    bytes[position++] = (byte) (i >> 16);
+    bytes[position++] = (byte) (i >> 8);
+    bytes[position++] = (byte) i;
+  }
+
+  private void putLong(long l) {
+    putInt((int) (l >> 32));
+    putInt((int) l);
+  }
+
+  public void writeNil() {
+    ensureRemaining(1);
+    putByte(0xc0);
+  }
+
+  public void writeBoolean(boolean b) {
+    ensureRemaining(1);
+    putByte(b ? 0xc3 : 0xc2);
+  }
+
+  public void writeLong(long l) {
+    ensureRemaining(9);
+    if (l < -(1L << 5)) {
+      if (l < -(1L << 15)) {
+        if (l < -(1L << 31)) {
+          putByte(0xd3);
+          putLong(l);
+        } else {
+          putByte(0xd2);
+          putInt((int) l);
+        }
+      } else if (l < -(1L << 7)) {
+        putByte(0xd1);
+        putShort((int) l);
+      } else {
+        putByte(0xd0);
+        putByte((int) l);
+      }
+    } else if (l < (1L << 7)) {
+      putByte((int) l);
+    } else if (l < (1L << 8)) {
+      putByte(0xcc);
+      putByte((int) l);
+    } else if (l < (1L << 16)) {
+      putByte(0xcd);
+      putShort((int) l);
+    } else if (l < (1L << 32)) {
+      putByte(0xce);
+      putInt((int) l);
+    } else {
+      putByte(0xcf);
+      putLong(l);
+    }
+  }
+
+  public void writeBigInteger(BigInteger i) {
+    if (i.bitLength() <= 63) {
+      writeLong(i.longValue());
+    } else if (i.bitLength() == 64 && i.signum() == 1) {
+      ensureRemaining(9);
+      putByte(0xcf);
+      putLong(i.longValue());
+    } else {
+      throw new IllegalArgumentException(String.format("Cannot pack integer out of range: %s", i));
+    }
+  }
+
+  public void writeDouble(double d) {
+    ensureRemaining(9);
+    putByte(0xcb);
+    putLong(Double.doubleToLongBits(d));
+  }
+
+  public void writeRawHeader(int size) {
+    ensureRemaining(5);
+    if (size < 32) {
+      putByte(0xa0 | size);
+    } else if (size < 65536) {
+      putByte(0xda);
+      putShort(size);
+    } else {
+      putByte(0xdb);
+      putInt(size);
+    }
+  }
+
+  public void writeStringHeader(int size) {
+    if (size < 32 || size >= 256) {
+      writeRawHeader(size);
+    } else {
+      ensureRemaining(2);
+      putByte(0xd9);
+      putByte(size);
+    }
+  }
+
+  public void writeBinaryHeader(int size) {
+    ensureRemaining(5);
+    if (size < 256) {
+      putByte(0xc4);
+      putByte(size);
+    } else if (size < 65536) {
+      putByte(0xc5);
+      putShort(size);
+    } else {
+      putByte(0xc6);
+      putInt(size);
+    }
+  }
+
+  public void writeString(ByteList bytes) {
+    writeStringHeader(bytes.length());
+    writeBytes(bytes.unsafeBytes(), bytes.begin(), bytes.length());
+  }
+
+  public void writeBinary(ByteList bytes) {
+    writeBinaryHeader(bytes.length());
+    writeBytes(bytes.unsafeBytes(), bytes.begin(), bytes.length());
+  }
+
+  public void writeRaw(ByteList bytes) {
+    writeRaw(bytes.unsafeBytes(), bytes.begin(), bytes.length());
+  }
+
+  public void writeRaw(byte[] src, int offset, int length) {
+    writeRawHeader(length);
+    writeBytes(src, offset, length);
+  }
+
+  public void writeBytes(byte[] src, int offset, int length) {
+    ensureRemaining(length);
+    System.arraycopy(src, offset, bytes, position, length);
+    position += length;
+  }
+
+  public void writeExt(int type, ByteList payload) {
+    int size = payload.length();
+    ensureRemaining(6);
+    switch (size) {
+    case 1: putByte(0xd4); break;
+    case 2: putByte(0xd5); break;
+    case 4: putByte(0xd6); break;
+    case 8: putByte(0xd7); break;
+    case 16: putByte(0xd8); break;
+    default:
+      if (size < 256) {
+        putByte(0xc7);
+        putByte(size);
+      } else if (size < 65536) {
+        putByte(0xc8);
+        putShort(size);
+      } else {
+        putByte(0xc9);
+        putInt(size);
+      }
+    }
+    putByte(type);
+    writeBytes(payload.unsafeBytes(), payload.begin(), size);
+  }
+
+  public void writeTimestamp(long seconds, int nanoseconds) {
+    ensureRemaining(15);
+    if ((seconds >>> 34) == 0) {
+      long data64 = ((long) nanoseconds << 34) | seconds;
+      if ((data64 & 0xffffffff00000000L) == 0) {
+        putByte(0xd6);
+        putByte(-1);
+        putInt((int) data64);
+      } else {
+        putByte(0xd7);
+        putByte(-1);
+        putLong(data64);
+      }
+    } else {
+      putByte(0xc7);
+      putByte(12);
+      putByte(-1);
+      putInt(nanoseconds);
+      putLong(seconds);
+    }
+  }
+
+  public void writeArrayHeader(int size) {
+    ensureRemaining(5);
+    if (size < 16) {
+      putByte(0x90 | size);
+    } else if (size < 65536) {
+      putByte(0xdc);
+      putShort(size);
+    } else {
+      putByte(0xdd);
+      putInt(size);
+    }
+  }
+
+  public void writeMapHeader(int size) {
+    ensureRemaining(5);
+    if (size < 16) {
+      putByte(0x80 | size);
+    } else if (size < 65536) {
+      putByte(0xde);
+      putShort(size);
+    } else {
+      putByte(0xdf);
+      putInt(size);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package org.msgpack.jruby;
+
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyModule;
+import org.jruby.RubyString;
+import org.jruby.RubySymbol;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+
+/**
+ * Maps extension type IDs to Ruby classes and the callables that convert
+ * instances to and from their payloads.
+ *
+ * Looking up the entry for a class walks its ancestors the first time and
+ * caches the result, including misses, so that packing a custom type costs
+ * one hash lookup. The cache is cleared whenever a type is registered, and
+ * a lookup that raced with a registration doesn't keep its result.
+ */
+class ExtensionRegistry {
+  private static final Entry NONE = new Entry(0, null, null, null);
+
+  private final AtomicReferenceArray<Entry> byType;
+  private final ConcurrentMap<RubyModule, Entry> byClass;
+  private final ConcurrentMap<RubyModule, Entry> resolved;
+  private volatile int generation;
+
+  static class Entry {
+    public final int type;
+    public final RubyModule klass;
+    private final IRubyObject packer;
+    private final IRubyObject unpacker;
+
+    Entry(int type, RubyModule klass, IRubyObject packer, IRubyObject unpacker) {
+      this.type = type;
+      this.klass = klass;
+      this.packer = packer;
+      this.unpacker = unpacker;
+    }
+
+    public boolean canPack() {
+      return packer != null && !packer.isNil();
+    }
+
+    public boolean canUnpack() {
+      return unpacker != null && !unpacker.isNil();
+    }
+
+    public RubyString pack(ThreadContext ctx, IRubyObject o) {
+      IRubyObject payload;
+      if (packer instanceof RubySymbol) {
+        payload = o.callMethod(ctx, packer.asJavaString());
+      } else {
+        payload = packer.callMethod(ctx, "call", o);
+      }
+      return payload.convertToString();
+    }
+
+    public IRubyObject unpack(ThreadContext ctx, RubyString payload) {
+      if (unpacker instanceof RubySymbol) {
+        return klass.callMethod(ctx, unpacker.asJavaString(), payload);
+      } else {
+        return unpacker.callMethod(ctx, "call", payload);
+      }
+    }
+  }
+
+  public ExtensionRegistry() {
+    this.byType = new AtomicReferenceArray<Entry>(256);
+    this.byClass = new ConcurrentHashMap<RubyModule, Entry>();
+    this.resolved = new ConcurrentHashMap<RubyModule, Entry>();
+  }
+
+  public synchronized void register(Ruby runtime, int type, IRubyObject klass, IRubyObject packer, IRubyObject unpacker) {
+    if (type < -128 || type > 127) {
+      throw runtime.newRangeError(String.format("Extension type out of range: %d", type));
+    }
+    if (!(klass instanceof RubyModule)) {
+      throw runtime.newTypeError(klass, runtime.getModule());
+    }
+    Entry entry = new Entry(type, (RubyModule) klass, packer, unpacker);
+    byType.set(type & 0xff, entry);
+    if (entry.canPack()) {
+      byClass.put(entry.klass, entry);
+    } else {
+      byClass.remove(entry.klass);
+    }
+    generation++;
+    resolved.clear();
+  }
+
+  /**
+   * Whether decoding can call into Ruby, which is when any type has an
+   * unpacker.
+   */
+  public boolean hasUnpackers() {
+    for (int i = 0; i < byType.length(); i++) {
+      if (forType(i) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public Entry forType(int type) {
+    Entry entry = byType.get(type & 0xff);
+    return (entry != null && entry.canUnpack()) ? entry : null;
+  }
+
+  public Entry forClass(RubyClass klass) {
+    if (byClass.isEmpty()) {
+      return null;
+    }
+    Entry entry = resolved.get(klass);
+    if (entry == null) {
+      int startGeneration = generation;
+      entry = NONE;
+      for (RubyModule m = klass; m != null; m = m.getSuperClass()) {
+        Entry candidate = byClass.get(m.getNonIncludedClass());
+        if (candidate != null) {
+          entry = candidate;
+          break;
+        }
+      }
+      resolved.put(klass, entry);
+      if (generation != startGeneration) {
+        resolved.remove(klass, entry);
+      }
+    }
+    return entry == NONE ? null : entry;
+  }
+}
@@ -0,0 +1,115 @@
+package org.msgpack.jruby;
+
+
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jruby.RubyString;
+import org.jruby.util.ByteList;
+
+
+/**
+ * Holds on to the chunks given to Unpacker#feed without copying them. The
+ * strings are marked as shared so that modifying them from Ruby makes a
+ * copy instead of changing the bytes under our feet.
+ *
+ * The decoder reads through the segments with #advance, and the unpacker
+ * brackets each object with #mark and #release, or #reset when the object
+ * was incomplete. FeedScanner reads the segments with absolute gets, by
+ * index, so it doesn't move them.
+ */
+class FeedBuffer {
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final List<ByteBuffer> segments;
+  private int current;
+  private int markIndex;
+  private int markPosition;
+
+  public FeedBuffer() {
+    this.segments = new ArrayList<ByteBuffer>();
+    this.current = 0;
+  }
+
+  public void feed(RubyString str) {
+    ByteList bytes = str.getByteList();
+    if (bytes.length() > 0) {
+      str.setByteListShared();
+      segments.add(ByteBuffer.wrap(bytes.unsafeBytes(), bytes.begin(), bytes.length()).slice());
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (int i = current; i < segments.size(); i++) {
+      size += segments.get(i).remaining();
+    }
+    return size;
+  }
+
+  public boolean isEmpty() {
+    for (int i = current; i < segments.size(); i++) {
+      if (segments.get(i).hasRemaining()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public int currentIndex() {
+    return current;
+  }
+
+  /**
+   * The segment at the given index, or null when there is none yet.
+   */
+  public ByteBuffer segment(int index) {
+    return index < segments.size() ? segments.get(index) : null;
+  }
+
+  public ByteBuffer mark() {
+    if (segments.isEmpty()) {
+      markIndex = 0;
+      markPosition = 0;
+      return EMPTY;
+    }
+    ByteBuffer segment = segments.get(current);
+    markIndex = current;
+    markPosition = segment.position();
+    return segment;
+  }
+
+  public ByteBuffer advance() {
+    if (current + 1 >= segments.size()) {
+      throw new BufferUnderflowException();
+    }
+    current++;
+    return segments.get(current);
+  }
+
+  public void reset() {
+    if (segments.isEmpty()) {
+      return;
+    }
+    for (int i = markIndex + 1; i <= current; i++) {
+      segments.get(i).position(0);
+    }
+    segments.get(markIndex).position(markPosition);
+    current = markIndex;
+  }
+
+  public void release() {
+    if (current < segments.size() && !segments.get(current).hasRemaining()) {
+      current++;
+    }
+    segments.subList(0, current).clear();
+    current = 0;
+  }
+
+  public void clear() {
+    segments.clear();
+    current = 0;
+  }
+}
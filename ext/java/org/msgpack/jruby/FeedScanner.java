@@ -0,0 +1,219 @@
+package org.msgpack.jruby;
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * Follows the structure of the object at the start of a FeedBuffer as its
+ * bytes are fed, so that an object that arrives in many chunks is decoded
+ * once when it's complete instead of once per chunk. Each scan picks up
+ * where the last one stopped, every byte is looked at once.
+ *
+ * Like Decoder#skip the scanner only keeps counts: the number of values
+ * left at each level of nesting, the bytes left of a header it is in the
+ * middle of, and the bytes left of a string, binary or extension body.
+ * That also says how many more bytes the object needs at the very least.
+ * Sizes and nesting are checked against the limits as headers are read.
+ */
+class FeedScanner {
+  private final FeedBuffer feed;
+  private final Decoder decoder;
+  private final byte[] header;
+  private long[] stack;
+  private int frames;
+  private int headerSize;
+  private int headerLength;
+  private long skip;
+  private boolean scanning;
+  private int segment;
+  private int position;
+
+  public FeedScanner(FeedBuffer feed, Decoder decoder) {
+    this.feed = feed;
+    this.decoder = decoder;
+    this.header = new byte[5];
+    this.stack = new long[8];
+  }
+
+  public boolean isScanning() {
+    return scanning;
+  }
+
+  /**
+   * Forgets the scan, which has to be done when the object has been
+   * decoded or the feed has been cleared.
+   */
+  public void reset() {
+    scanning = false;
+  }
+
+  /**
+   * Scans the bytes that have been fed since the last call and returns
+   * true when the whole object is there.
+   */
+  public boolean scan() {
+    if (!scanning) {
+      start();
+    }
+    while (true) {
+      if (skip > 0) {
+        ByteBuffer buffer = current();
+        if (buffer == null) {
+          return false;
+        }
+        int n = (int) Math.min(skip, buffer.limit() - position);
+        position += n;
+        skip -= n;
+      } else if (headerSize < headerLength) {
+        ByteBuffer buffer = current();
+        if (buffer == null) {
+          return false;
+        }
+        header[headerSize++] = buffer.get(position++);
+        if (headerSize == headerLength) {
+          endHeader();
+        }
+      } else if (frames == 0) {
+        return true;
+      } else {
+        ByteBuffer buffer = current();
+        if (buffer == null) {
+          return false;
+        }
+        stack[frames - 1]--;
+        startValue(buffer.get(position++) & 0xff);
+        if (headerSize == headerLength) {
+          popFinished();
+        }
+      }
+    }
+  }
+
+  /**
+   * The smallest number of bytes that the object still needs, counting one
+   * byte for every value that hasn't been started.
+   */
+  public long bytesNeeded() {
+    if (scan()) {
+      return 0;
+    }
+    long needed = skip + headerLength - headerSize;
+    for (int i = 0; i < frames; i++) {
+      needed += stack[i];
+    }
+    return needed;
+  }
+
+  private void start() {
+    segment = feed.currentIndex();
+    ByteBuffer buffer = feed.segment(segment);
+    position = (buffer == null) ? 0 : buffer.position();
+    stack[0] = 1;
+    frames = 1;
+    headerSize = headerLength = 0;
+    skip = 0;
+    scanning = true;
+  }
+
+  /**
+   * The segment that the next byte is in, or null when everything that
+   * has been fed has been scanned.
+   */
+  private ByteBuffer current() {
+    ByteBuffer buffer = feed.segment(segment);
+    while (buffer != null && position >= buffer.limit()) {
+      buffer = feed.segment(++segment);
+      position = 0;
+    }
+    return buffer;
+  }
+
+  private void startValue(int b) {
+    if (b <= 0x7f || b >= 0xe0) {
+      return;
+    } else if (b <= 0x8f) {
+      startContainer(2L * (b & 0x0f), b & 0x0f, true);
+      return;
+    } else if (b <= 0x9f) {
+      startContainer(b & 0x0f, b & 0x0f, false);
+      return;
+    } else if (b <= 0xbf) {
+      decoder.checkStringSize(b & 0x1f);
+      skip = b & 0x1f;
+      return;
+    }
+    switch (b) {
+    case 0xc0: case 0xc2: case 0xc3: break;
+    case 0xcc: case 0xd0: skip = 1; break;
+    case 0xcd: case 0xd1: skip = 2; break;
+    case 0xca: case 0xce: case 0xd2: skip = 4; break;
+    case 0xcb: case 0xcf: case 0xd3: skip = 8; break;
+    case 0xd4: skip = 2; break;
+    case 0xd5: skip = 3; break;
+    case 0xd6: skip = 5; break;
+    case 0xd7: skip = 9; break;
+    case 0xd8: skip = 17; break;
+    case 0xd9: case 0xc4: case 0xc7: startHeader(b, 1); break;
+    case 0xda: case 0xc5: case 0xc8: case 0xdc: case 0xde: startHeader(b, 2); break;
+    case 0xdb: case 0xc6: case 0xc9: case 0xdd: case 0xdf: startHeader(b, 4); break;
+    default: throw decoder.unpackError(String.format("Illegal byte sequence: 0x%02x", b));
+    }
+  }
+
+  private void startHeader(int b, int lengthSize) {
+    header[0] = (byte) b;
+    headerSize = 1;
+    headerLength = 1 + lengthSize;
+  }
+
+  private void endHeader() {
+    int b = header[0] & 0xff;
+    int length = 0;
+    for (int i = 1; i < headerLength; i++) {
+      length = (length << 8) | (header[i] & 0xff);
+    }
+    if (headerLength == 5) {
+      decoder.checkLength32(length);
+    }
+    headerSize = headerLength = 0;
+    switch (b) {
+    case 0xd9: case 0xda: case 0xdb: case 0xc4: case 0xc5: case 0xc6:
+      decoder.checkStringSize(length);
+      skip = length;
+      break;
+    case 0xc7: case 0xc8: case 0xc9:
+      skip = length + 1L;
+      break;
+    case 0xdc: case 0xdd:
+      startContainer(length, length, false);
+      break;
+    default:
+      startContainer(2L * length, length, true);
+      break;
+    }
+    popFinished();
+  }
+
+  private void startContainer(long values, int size, boolean map) {
+    if (map) {
+      decoder.checkMapSize(size);
+    } else {
+      decoder.checkArraySize(size);
+    }
+    decoder.checkDepth(frames);
+    if (values > 0) {
+      if (frames == stack.length) {
+        stack = Arrays.copyOf(stack, 2 * frames);
+      }
+      stack[frames++] = values;
+    }
+  }
+
+  private void popFinished() {
+    while (frames > 0 && stack[frames - 1] == 0) {
+      frames--;
+    }
+  }
+}
@@ -0,0 +1,33 @@
+package org.msgpack.jruby;
+
+
+import org.jruby.Ruby;
+import org.jruby.RubyFixnum;
+
+
+/**
+ * Shared Fixnum instances for the integers that show up most in decoded
+ * data: counters, small ids, enum values and lengths. JRuby only caches
+ * -256 to 255 itself, this covers -1024 to 4095 for about 5000 objects per
+ * runtime.
+ */
+class FixnumCache {
+  public static final int MIN = -1024;
+  public static final int MAX = 4096;
+
+  private final RubyFixnum[] fixnums;
+
+  public FixnumCache(Ruby runtime) {
+    this.fixnums = new RubyFixnum[MAX - MIN];
+    for (int i = 0; i < fixnums.length; i++) {
+      fixnums[i] = RubyFixnum.newFixnum(runtime, i + MIN);
+    }
+  }
+
+  public RubyFixnum get(Ruby runtime, long value) {
+    if (value >= MIN && value < MAX) {
+      return fixnums[(int) value - MIN];
+    }
+    return RubyFixnum.newFixnum(runtime, value);
+  }
+}
@@ -0,0 +1,77 @@
+package org.msgpack.jruby;
+
+
+import org.jcodings.Encoding;
+
+import org.jruby.runtime.builtin.IRubyObject;
+
+
+/**
+ * A bounded, direct mapped cache from the raw bytes of decoded hash keys to
+ * frozen strings or symbols. Lookups compare against the bytes in the input
+ * buffer, so a hit allocates nothing.
+ *
+ * Entries are immutable and replaced wholesale, so the cache can be shared
+ * between threads without locking; a race at worst loses an entry.
+ */
+class KeyCache {
+  public static final int DEFAULT_SIZE = 1024;
+  public static final int MAX_KEY_SIZE = 64;
+  public static final int MAX_SIZE = 1 << 20;
+
+  private final Entry[] entries;
+  private final int mask;
+
+  private static class Entry {
+    final byte[] bytes;
+    final int hash;
+    final Encoding encoding;
+    final boolean symbol;
+    final IRubyObject value;
+
+    Entry(byte[] bytes, int hash, Encoding encoding, boolean symbol, IRubyObject value) {
+      this.bytes = bytes;
+      this.hash = hash;
+      this.encoding = encoding;
+      this.symbol = symbol;
+      this.value = value;
+    }
+  }
+
+  public KeyCache(int size) {
+    int capacity = Integer.highestOneBit(Math.min(Math.max(size, 1), MAX_SIZE) - 1) << 1;
+    if (capacity <= 0) {
+      capacity = 1;
+    }
+    this.entries = new Entry[capacity];
+    this.mask = capacity - 1;
+  }
+
+  private static int hash(byte[] bytes, int offset, int length, boolean symbol) {
+    int h = symbol ? 0x9e3779b9 : 0;
+    for (int i = offset; i < offset + length; i++) {
+      h = 31 * h + bytes[i];
+    }
+    return h ^ (h >>> 16);
+  }
+
+  public IRubyObject get(byte[] bytes, int offset, int length, Encoding encoding, boolean symbol) {
+    int h = hash(bytes, offset, length, symbol);
+    Entry entry = entries[h & mask];
+    if (entry == null || entry.hash != h || entry.symbol != symbol || entry.encoding != encoding || entry.bytes.length != length) {
+      return null;
+    }
+    byte[] cached = entry.bytes;
+    for (int i = 0; i < length; i++) {
+      if (cached[i] != bytes[offset + i]) {
+        return null;
+      }
+    }
+    return entry.value;
+  }
+
+  public void put(byte[] bytes, Encoding encoding, boolean symbol, IRubyObject value) {
+    int h = hash(bytes, 0, bytes.length, symbol);
+    entries[h & mask] = new Entry(bytes, h, encoding, symbol, value);
+  }
+}
@@ -2,16 +2,28 @@ package org.msgpack.jruby;
 
 
 import java.io.InputStream;
-import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
 
 import org.jruby.Ruby;
 import org.jruby.RubyModule;
 import org.jruby.RubyClass;
 import org.jruby.RubyString;
 import org.jruby.RubyObject;
+import org.jruby.RubyFixnum;
 import org.jruby.RubyHash;
+import org.jruby.RubyArray;
+import org.jruby.RubySymbol;
 import org.jruby.RubyIO;
+import org.jruby.RubyStruct;
 import org.jruby.RubyNumeric;
 import org.jruby.RubyEnumerator;
 import org.jruby.runtime.load.Library;
@@ -23,17 +35,13 @@ import org.jruby.runtime.ThreadContext;
 import org.jruby.anno.JRubyClass;
 import org.jruby.anno.JRubyModule;
 import org.jruby.anno.JRubyMethod;
-import org.jruby.util.IOInputStream;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.util.ByteList;
 
 import static org.jruby.runtime.Visibility.*;
 
-import org.msgpack.MessagePack;
 import org.msgpack.packer.BufferPacker;
 import org.msgpack.packer.Packer;
-import org.msgpack.unpacker.MessagePackBufferUnpacker;
-import org.msgpack.unpacker.MessagePackUnpacker;
-import org.msgpack.unpacker.UnpackerIterator;
-import org.msgpack.type.Value;
 import org.msgpack.io.Input;
 import org.msgpack.io.LinkedBufferInput;
 import org.msgpack.io.StreamInput;
@@ -41,85 +49,746 @@ import org.msgpack.io.StreamInput;
 
 public class MessagePackLibrary implements Library {
   public void load(Ruby runtime, boolean wrap) throws IOException {
-    MessagePack msgPack = new MessagePack();
+    RuntimeState state = new RuntimeState();
     RubyModule msgpackModule = runtime.defineModule("MessagePack");
+    state.install(msgpackModule);
     msgpackModule.defineAnnotatedMethods(MessagePackModule.class);
     RubyClass standardErrorClass = runtime.getStandardError();
     RubyClass unpackErrorClass = msgpackModule.defineClassUnder("UnpackError", standardErrorClass, standardErrorClass.getAllocator());
-    RubyClass unpackerClass = msgpackModule.defineClassUnder("Unpacker", runtime.getObject(), new UnpackerAllocator(msgPack));
+    RubyClass unpackerClass = msgpackModule.defineClassUnder("Unpacker", runtime.getObject(), new UnpackerAllocator(state));
     unpackerClass.defineAnnotatedMethods(Unpacker.class);
+    RubyClass packerClass = msgpackModule.defineClassUnder("Packer", runtime.getObject(), new PackerAllocator(state));
+    packerClass.defineAnnotatedMethods(Packer.class);
+    RubyClass lazyViewClass = msgpackModule.defineClassUnder("LazyView", runtime.getObject(), ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+    lazyViewClass.includeModule(runtime.getEnumerable());
+    lazyViewClass.defineAnnotatedMethods(LazyView.class);
+    RubyClass schemaClass = msgpackModule.defineClassUnder("Schema", runtime.getObject(), ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+    schemaClass.defineAnnotatedMethods(Schema.class);
+    RubyModule rpcModule = msgpackModule.defineModuleUnder("RPC");
+    rpcModule.defineConstant("REQUEST", runtime.newFixnum(RpcCodec.REQUEST));
+    rpcModule.defineConstant("RESPONSE", runtime.newFixnum(RpcCodec.RESPONSE));
+    rpcModule.defineConstant("NOTIFICATION", runtime.newFixnum(RpcCodec.NOTIFICATION));
+    RubyClass codecClass = rpcModule.defineClassUnder("Codec", runtime.getObject(), new RpcCodecAllocator(state));
+    codecClass.defineAnnotatedMethods(RpcCodec.class);
+  }
+
+  private static int parallelism(Ruby runtime, RubyHash options) {
+    int parallelism = RuntimeState.DEFAULT_PARALLELISM;
+    if (options != null) {
+      IRubyObject rubyParallelism = options.fastARef(runtime.newSymbol("parallelism"));
+      if (rubyParallelism != null && !rubyParallelism.isNil()) {
+        parallelism = RubyNumeric.fix2int(rubyParallelism);
+        if (parallelism < 1) {
+          throw runtime.newArgumentError(String.format("Parallelism must be positive: %d", parallelism));
+        }
+      }
+    }
+    return parallelism;
+  }
+
+  /**
+   * Whether :compression asks for deflate blocks, which is the only kind
+   * of compression there is.
+   */
+  private static boolean isCompressed(Ruby runtime, RubyHash options) {
+    if (options == null) {
+      return false;
+    }
+    IRubyObject compression = options.fastARef(runtime.newSymbol("compression"));
+    if (compression == null || !compression.isTrue()) {
+      return false;
+    } else if (compression == runtime.newSymbol("deflate")) {
+      return true;
+    }
+    throw runtime.newArgumentError(String.format("Unsupported compression: %s", compression.inspect()));
   }
 
   @JRubyModule(name = "MessagePack")
   public static class MessagePackModule {
-    private static MessagePack msgPack = new MessagePack();
-    private static RubyObjectPacker packer = new RubyObjectPacker(msgPack);
-    private static RubyObjectUnpacker unpacker = new RubyObjectUnpacker(msgPack);
-    
     @JRubyMethod(module = true, required = 1, optional = 1, alias = {"dump"})
     public static IRubyObject pack(ThreadContext ctx, IRubyObject recv, IRubyObject[] args) throws IOException {
+      RuntimeState state = RuntimeState.get(ctx.getRuntime());
       RubyHash options = (args.length == 2) ? (RubyHash) args[1] : null;
-      return packer.pack(args[0], options);
+      return state.packer.pack(args[0], new RubyObjectPacker.CompiledOptions(ctx.getRuntime(), state, options));
     }
     
     @JRubyMethod(module = true, required = 1, optional = 1, alias = {"load"})
     public static IRubyObject unpack(ThreadContext ctx, IRubyObject recv, IRubyObject[] args) throws IOException {
+      RuntimeState state = RuntimeState.get(ctx.getRuntime());
       RubyHash options = (args.length == 2) ? (RubyHash) args[1] : null;
       RubyString str = args[0].asString();
-      return unpacker.unpack(str, options);
+      return state.unpacker.unpack(str, new RubyObjectUnpacker.CompiledOptions(ctx.getRuntime(), state, options));
+    }
+
+    @JRubyMethod(name = "unpack_into", module = true, required = 2, optional = 1)
+    public static IRubyObject unpackInto(ThreadContext ctx, IRubyObject recv, IRubyObject[] args) throws IOException {
+      RuntimeState state = RuntimeState.get(ctx.getRuntime());
+      RubyHash options = (args.length == 3) ? (RubyHash) args[2] : null;
+      RubyString str = args[1].asString();
+      return state.unpacker.unpackInto(args[0], str, new RubyObjectUnpacker.CompiledOptions(ctx.getRuntime(), state, options));
+    }
+
+    @JRubyMethod(name = "unpack_batch", module = true, required = 1, optional = 1)
+    public static IRubyObject unpackBatch(ThreadContext ctx, IRubyObject recv, IRubyObject[] args) {
+      Ruby runtime = ctx.getRuntime();
+      RuntimeState state = RuntimeState.get(runtime);
+      RubyHash options = (args.length == 2) ? (RubyHash) args[1] : null;
+      int parallelism = parallelism(runtime, options);
+      RubyObjectUnpacker.CompiledOptions compiledOptions = new RubyObjectUnpacker.CompiledOptions(runtime, state, options);
+      return new BatchUnpacker(runtime, state.executor(runtime), compiledOptions).unpack(args[0], parallelism);
+    }
+
+    @JRubyMethod(name = "compile_schema", module = true, required = 1, optional = 1)
+    public static IRubyObject compileSchema(ThreadContext ctx, IRubyObject recv, IRubyObject[] args) {
+      RubyHash options = (args.length == 2) ? (RubyHash) args[1] : null;
+      return Schema.compile(ctx, RuntimeState.get(ctx.getRuntime()), args[0], options);
+    }
+
+    @JRubyMethod(name = "register_type", module = true, required = 4)
+    public static IRubyObject registerType(ThreadContext ctx, IRubyObject recv, IRubyObject[] args) {
+      int type = RubyNumeric.num2int(args[0]);
+      RuntimeState.get(ctx.getRuntime()).extensions.register(ctx.getRuntime(), type, args[1], args[2], args[3]);
+      return ctx.getRuntime().getNil();
+    }
+
+    @JRubyMethod(name = "enable_stats", module = true)
+    public static IRubyObject enableStats(ThreadContext ctx, IRubyObject recv) {
+      RuntimeState.get(ctx.getRuntime()).metrics.enable(ctx.getRuntime());
+      return ctx.getRuntime().getNil();
+    }
+
+    @JRubyMethod(name = "disable_stats", module = true)
+    public static IRubyObject disableStats(ThreadContext ctx, IRubyObject recv) {
+      RuntimeState.get(ctx.getRuntime()).metrics.disable(ctx.getRuntime());
+      return ctx.getRuntime().getNil();
+    }
+
+    @JRubyMethod(name = "reset_stats", module = true)
+    public static IRubyObject resetStats(ThreadContext ctx, IRubyObject recv) {
+      RuntimeState.get(ctx.getRuntime()).metrics.reset();
+      return ctx.getRuntime().getNil();
+    }
+
+    @JRubyMethod(name = "stats", module = true)
+    public static IRubyObject stats(ThreadContext ctx, IRubyObject recv) {
+      return RuntimeState.get(ctx.getRuntime()).metrics.toHash(ctx.getRuntime());
+    }
+
+    @JRubyMethod(name = "unpack_lazy", module = true, required = 1, optional = 1)
+    public static IRubyObject unpackLazy(ThreadContext ctx, IRubyObject recv, IRubyObject[] args) {
+      RuntimeState state = RuntimeState.get(ctx.getRuntime());
+      RubyHash options = (args.length == 2) ? (RubyHash) args[1] : null;
+      RubyString str = args[0].asString();
+      return LazyView.unpack(ctx.getRuntime(), str, new RubyObjectUnpacker.CompiledOptions(ctx.getRuntime(), state, options));
+    }
+  }
+
+  @JRubyClass(name="MessagePack::LazyView", include="Enumerable")
+  public static class LazyView extends RubyObject {
+    private final Decoder decoder;
+    private final ByteBuffer buffer;
+    private final RubyObjectUnpacker.CompiledOptions options;
+    private final int start;
+    private final int elementsStart;
+    private final int size;
+    private final boolean map;
+
+    private LazyView(Ruby runtime, Decoder decoder, RubyObjectUnpacker.CompiledOptions options, int start, boolean map) {
+      super(runtime, runtime.getModule("MessagePack").getClass("LazyView"));
+      this.decoder = decoder;
+      this.buffer = decoder.getBuffer();
+      this.options = options;
+      this.start = start;
+      this.map = map;
+      this.size = map ? decoder.readMapHeader() : decoder.readArrayHeader();
+      this.elementsStart = buffer.position();
+    }
+
+    static IRubyObject unpack(Ruby runtime, RubyString str, RubyObjectUnpacker.CompiledOptions options) {
+      str.setByteListShared();
+      ByteList bytes = str.getByteList();
+      options.checkBytes(runtime, bytes.length());
+      ByteBuffer buffer = ByteBuffer.wrap(bytes.unsafeBytes(), bytes.begin(), bytes.length());
+      Decoder decoder = new Decoder(runtime, options, buffer);
+      try {
+        return readLazy(runtime, decoder, options, false);
+      } catch (BufferUnderflowException bue) {
+        throw prematureEnd(runtime);
+      }
+    }
+
+    private static IRubyObject readLazy(Ruby runtime, Decoder decoder, RubyObjectUnpacker.CompiledOptions options, boolean skipContents) {
+      ByteBuffer buffer = decoder.getBuffer();
+      boolean map = decoder.isNextMap();
+      if (map || decoder.isNextArray()) {
+        LazyView view = new LazyView(runtime, decoder, options, buffer.position(), map);
+        if (skipContents) {
+          for (long i = 0, n = map ? 2L * view.size : view.size; i < n; i++) {
+            decoder.skip();
+          }
+        }
+        return view;
+      } else {
+        return decoder.next();
+      }
+    }
+
+    static RaiseException prematureEnd(Ruby runtime) {
+      RubyClass unpackErrorClass = runtime.getModule("MessagePack").getClass("UnpackError");
+      return runtime.newRaiseException(unpackErrorClass, "Premature end of data");
+    }
+
+    private boolean matchesKey(ThreadContext ctx, IRubyObject key) {
+      RubyString keyString = null;
+      if (options.symbolizeKeys ? key instanceof RubySymbol : key instanceof RubyString) {
+        keyString = key.asString();
+      }
+      if (keyString != null && decoder.isNextRaw() && options.encoding.isAsciiCompatible() && keyString.isCodeRangeAsciiOnly()) {
+        int length = decoder.readRawHeader();
+        ByteList keyBytes = keyString.getByteList();
+        boolean equal = length == keyBytes.length() && buffer.remaining() >= length;
+        if (equal) {
+          byte[] array = buffer.array();
+          int offset = buffer.arrayOffset() + buffer.position();
+          byte[] keyArray = keyBytes.unsafeBytes();
+          int keyOffset = keyBytes.begin();
+          for (int i = 0; i < length && equal; i++) {
+            equal = array[offset + i] == keyArray[keyOffset + i];
+          }
+        }
+        decoder.skipBytes(length);
+        return equal;
+      } else {
+        return decoder.nextKey().eql(key);
+      }
+    }
+
+    @JRubyMethod(name = "[]", required = 1)
+    public IRubyObject aref(ThreadContext ctx, IRubyObject key) {
+      Ruby runtime = ctx.getRuntime();
+      try {
+        buffer.position(elementsStart);
+        if (map) {
+          for (int i = 0; i < size; i++) {
+            if (matchesKey(ctx, key)) {
+              return readLazy(runtime, decoder, options, false);
+            }
+            decoder.skip();
+          }
+        } else {
+          int index = RubyNumeric.num2int(key);
+          if (index < 0) {
+            index += size;
+          }
+          if (index >= 0 && index < size) {
+            for (int i = 0; i < index; i++) {
+              decoder.skip();
+            }
+            return readLazy(runtime, decoder, options, false);
+          }
+        }
+        return runtime.getNil();
+      } catch (BufferUnderflowException bue) {
+        throw prematureEnd(runtime);
+      }
+    }
+
+    @JRubyMethod(name = "dig", rest = true)
+    public IRubyObject dig(ThreadContext ctx, IRubyObject[] keys) {
+      IRubyObject current = this;
+      for (IRubyObject key : keys) {
+        if (current instanceof LazyView) {
+          current = ((LazyView) current).aref(ctx, key);
+        } else if (current.isNil()) {
+          return current;
+        } else {
+          throw ctx.getRuntime().newTypeError(String.format("%s does not have #dig method", current.getMetaClass().getName()));
+        }
+      }
+      return current;
+    }
+
+    @JRubyMethod(name = "key?", alias = {"has_key?", "include?", "member?"}, required = 1)
+    public IRubyObject key_p(ThreadContext ctx, IRubyObject key) {
+      Ruby runtime = ctx.getRuntime();
+      if (!map) {
+        throw runtime.newTypeError("Not a map");
+      }
+      try {
+        buffer.position(elementsStart);
+        for (int i = 0; i < size; i++) {
+          if (matchesKey(ctx, key)) {
+            return runtime.getTrue();
+          }
+          decoder.skip();
+        }
+        return runtime.getFalse();
+      } catch (BufferUnderflowException bue) {
+        throw prematureEnd(runtime);
+      }
+    }
+
+    @JRubyMethod(name = "size", alias = {"length"})
+    public IRubyObject size(ThreadContext ctx) {
+      return ctx.getRuntime().newFixnum(size);
+    }
+
+    @JRubyMethod(name = "map?")
+    public IRubyObject map_p(ThreadContext ctx) {
+      return map ? ctx.getRuntime().getTrue() : ctx.getRuntime().getFalse();
+    }
+
+    @JRubyMethod(name = "array?")
+    public IRubyObject array_p(ThreadContext ctx) {
+      return map ? ctx.getRuntime().getFalse() : ctx.getRuntime().getTrue();
+    }
+
+    @JRubyMethod
+    public IRubyObject each(ThreadContext ctx, Block block) {
+      if (!block.isGiven()) {
+        return callMethod(ctx, "to_enum");
+      }
+      Ruby runtime = ctx.getRuntime();
+      int position = elementsStart;
+      try {
+        for (int i = 0; i < size; i++) {
+          buffer.position(position);
+          IRubyObject element;
+          if (map) {
+            IRubyObject key = decoder.nextKey();
+            IRubyObject value = readLazy(runtime, decoder, options, true);
+            element = RubyArray.newArray(runtime, key, value);
+          } else {
+            element = readLazy(runtime, decoder, options, true);
+          }
+          position = buffer.position();
+          block.yield(ctx, element);
+        }
+      } catch (BufferUnderflowException bue) {
+        throw prematureEnd(runtime);
+      }
+      return this;
+    }
+
+    @JRubyMethod
+    public IRubyObject materialize(ThreadContext ctx) {
+      try {
+        buffer.position(start);
+        return decoder.next();
+      } catch (BufferUnderflowException bue) {
+        throw prematureEnd(ctx.getRuntime());
+      }
+    }
+  }
+
+  @JRubyClass(name="MessagePack::Schema")
+  public static class Schema extends RubyObject {
+    private final RuntimeState state;
+    private final IRubyObject[] keys;
+    private final byte[][] encodedKeys;
+    private final byte[][] rawKeys;
+    private final IRubyObject[] decodedKeys;
+    private final RubyClass structClass;
+    private final RubyObjectPacker.CompiledOptions packOptions;
+    private final RubyObjectUnpacker.CompiledOptions unpackOptions;
+
+    private Schema(Ruby runtime, RuntimeState state, IRubyObject[] keys, RubyClass structClass, RubyHash options) {
+      super(runtime, runtime.getModule("MessagePack").getClass("Schema"));
+      this.state = state;
+      this.keys = keys;
+      this.structClass = structClass;
+      this.packOptions = new RubyObjectPacker.CompiledOptions(runtime, state, options);
+      this.unpackOptions = new RubyObjectUnpacker.CompiledOptions(runtime, state, options);
+      this.encodedKeys = new byte[keys.length][];
+      this.rawKeys = new byte[keys.length][];
+      this.decodedKeys = new IRubyObject[keys.length];
+      for (int i = 0; i < keys.length; i++) {
+        if (!(keys[i] instanceof RubyString || keys[i] instanceof RubySymbol)) {
+          throw runtime.newArgumentError(String.format("Schema keys must be strings or symbols, not %s", keys[i].getMetaClass().getName()));
+        }
+        Encoder encoder = new Encoder();
+        state.packer.write(encoder, keys[i], packOptions);
+        encodedKeys[i] = encoder.toByteArray();
+        Decoder decoder = new Decoder(runtime, unpackOptions, ByteBuffer.wrap(encodedKeys[i]));
+        rawKeys[i] = new byte[decoder.readRawHeader()];
+        decoder.getBuffer().get(rawKeys[i]);
+        decoder.getBuffer().rewind();
+        decodedKeys[i] = decoder.nextKey();
+        if (decodedKeys[i] instanceof RubyString) {
+          decodedKeys[i].setFrozen(true);
+        }
+      }
+    }
+
+    static Schema compile(ThreadContext ctx, RuntimeState state, IRubyObject definition, RubyHash options) {
+      Ruby runtime = ctx.getRuntime();
+      if (definition instanceof RubyClass && ((RubyClass) definition).hasModuleInHierarchy(runtime.getStructClass())) {
+        RubyArray members = definition.callMethod(ctx, "members").convertToArray();
+        return new Schema(runtime, state, members.toJavaArray(), (RubyClass) definition, options);
+      } else if (definition instanceof RubyArray) {
+        return new Schema(runtime, state, ((RubyArray) definition).toJavaArray(), null, options);
+      } else {
+        throw runtime.newTypeError(String.format("Expected an array of keys or a Struct class, not %s", definition.getMetaClass().getName()));
+      }
+    }
+
+    @JRubyMethod(name = "pack", required = 1)
+    public IRubyObject pack(ThreadContext ctx, IRubyObject obj) {
+      Encoder encoder = RubyObjectPacker.acquireEncoder();
+      try {
+        if (packOptions.metrics.isEnabled()) {
+          encoder.takeGrowths();
+          long startTime = System.nanoTime();
+          write(encoder, obj);
+          packOptions.metrics.packed(encoder.size(), System.nanoTime() - startTime, encoder.takeGrowths());
+        } else {
+          write(encoder, obj);
+        }
+        return RubyString.newStringNoCopy(ctx.getRuntime(), encoder.toByteArray());
+      } finally {
+        RubyObjectPacker.releaseEncoder(encoder);
+      }
+    }
+
+    private void write(Encoder encoder, IRubyObject obj) {
+      if (obj instanceof RubyHash && ((RubyHash) obj).size() == keys.length) {
+        RubyHash hash = (RubyHash) obj;
+        int start = encoder.size();
+        encoder.writeMapHeader(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+          IRubyObject value = hash.fastARef(keys[i]);
+          if (value == null) {
+            encoder.truncate(start);
+            state.packer.write(encoder, obj, packOptions);
+            return;
+          }
+          encoder.writeBytes(encodedKeys[i], 0, encodedKeys[i].length);
+          state.packer.write(encoder, value, packOptions);
+        }
+      } else if (structClass != null && structClass.isInstance(obj)) {
+        RubyStruct struct = (RubyStruct) obj;
+        encoder.writeMapHeader(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+          encoder.writeBytes(encodedKeys[i], 0, encodedKeys[i].length);
+          state.packer.write(encoder, struct.get(i), packOptions);
+        }
+      } else {
+        state.packer.write(encoder, obj, packOptions);
+      }
+    }
+
+    @JRubyMethod(name = "unpack", required = 1)
+    public IRubyObject unpack(ThreadContext ctx, IRubyObject data) {
+      Ruby runtime = ctx.getRuntime();
+      ByteList bytes = data.asString().getByteList();
+      unpackOptions.checkBytes(runtime, bytes.length());
+      ByteBuffer buffer = ByteBuffer.wrap(bytes.unsafeBytes(), bytes.begin(), bytes.length());
+      Decoder decoder = new Decoder(runtime, unpackOptions, buffer);
+      try {
+        long startTime = decoder.startCounting();
+        IRubyObject value = read(ctx, decoder);
+        decoder.finishCounting(startTime);
+        return value;
+      } catch (BufferUnderflowException bue) {
+        throw LazyView.prematureEnd(runtime);
+      }
+    }
+
+    private IRubyObject read(ThreadContext ctx, Decoder decoder) {
+      Ruby runtime = ctx.getRuntime();
+      if (!decoder.isNextMap()) {
+        return decoder.next();
+      }
+      int size = decoder.readMapHeader();
+      if (structClass != null) {
+        IRubyObject[] values = new IRubyObject[keys.length];
+        Arrays.fill(values, runtime.getNil());
+        for (int i = 0; i < size; i++) {
+          int index = decoder.nextKeyIndex(rawKeys, i);
+          if (index < 0) {
+            decoder.skip();
+            decoder.skip();
+          } else {
+            values[index] = decoder.next();
+          }
+        }
+        return structClass.newInstance(ctx, values, Block.NULL_BLOCK);
+      } else {
+        RubyHash hash = RubyHash.newHash(runtime);
+        for (int i = 0; i < size; i++) {
+          int index = decoder.nextKeyIndex(rawKeys, i);
+          IRubyObject key = (index < 0) ? decoder.nextKey() : decodedKeys[index];
+          hash.fastASet(key, decoder.next());
+        }
+        return hash;
+      }
+    }
+
+    @JRubyMethod(name = "keys")
+    public IRubyObject getKeys(ThreadContext ctx) {
+      return RubyArray.newArray(ctx.getRuntime(), keys);
+    }
+
+    @JRubyMethod(name = "struct")
+    public IRubyObject getStruct(ThreadContext ctx) {
+      return structClass == null ? ctx.getRuntime().getNil() : structClass;
+    }
+  }
+
+  private static class PackerAllocator implements ObjectAllocator {
+    private RuntimeState state;
+
+    public PackerAllocator(RuntimeState state) {
+      this.state = state;
+    }
+
+    public IRubyObject allocate(Ruby runtime, RubyClass klass) {
+      return new Packer(runtime, klass, state);
+    }
+  }
+
+  @JRubyClass(name="MessagePack::Packer")
+  public static class Packer extends RubyObject {
+    private static final int DEFAULT_WATERMARK = 32 * 1024;
+    private static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+    private RuntimeState state;
+    private Encoder encoder;
+    private IRubyObject io;
+    private int watermark;
+    private RubyObjectPacker.CompiledOptions options;
+    private BlockDeflater deflater;
+
+    public Packer(Ruby runtime, RubyClass type, RuntimeState state) {
+      super(runtime, type);
+      this.state = state;
+      this.encoder = new Encoder();
+      this.io = null;
+      this.watermark = DEFAULT_WATERMARK;
+    }
+
+    @JRubyMethod(name = "initialize", optional = 2, visibility = PRIVATE)
+    public IRubyObject initialize(ThreadContext ctx, IRubyObject[] args) {
+      RubyHash optionsHash = null;
+      if (args.length > 0 && args[args.length - 1] instanceof RubyHash) {
+        optionsHash = (RubyHash) args[args.length - 1];
+      }
+      if (args.length > 0 && !(args[0] instanceof RubyHash) && !args[0].isNil()) {
+        io = args[0];
+      }
+      Ruby runtime = ctx.getRuntime();
+      if (isCompressed(runtime, optionsHash)) {
+        if (io == null) {
+          throw runtime.newArgumentError("Compression needs an IO to write to");
+        }
+        int level = Deflater.DEFAULT_COMPRESSION;
+        IRubyObject rubyLevel = optionsHash.fastARef(runtime.newSymbol("compression_level"));
+        if (rubyLevel != null && !rubyLevel.isNil()) {
+          level = RubyNumeric.fix2int(rubyLevel);
+          if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw runtime.newArgumentError(String.format("Compression level out of range: %d", level));
+          }
+        }
+        deflater = new BlockDeflater(state.executor(runtime), level, parallelism(runtime, optionsHash));
+        watermark = DEFAULT_BLOCK_SIZE;
+      }
+      if (optionsHash != null) {
+        IRubyObject rubyWatermark = optionsHash.fastARef(runtime.newSymbol("watermark"));
+        if (rubyWatermark != null && !rubyWatermark.isNil()) {
+          watermark = RubyNumeric.fix2int(rubyWatermark);
+        }
+      }
+      options = new RubyObjectPacker.CompiledOptions(runtime, state, optionsHash);
+      return this;
+    }
+
+    @JRubyMethod(required = 1)
+    public IRubyObject write(ThreadContext ctx, IRubyObject obj) throws IOException {
+      state.packer.writeValue(encoder, obj, options);
+      return flushIfFull(ctx);
+    }
+
+    @JRubyMethod(name = "write_nil")
+    public IRubyObject writeNil(ThreadContext ctx) {
+      encoder.writeNil();
+      return flushIfFull(ctx);
+    }
+
+    @JRubyMethod(name = "write_array_header", required = 1)
+    public IRubyObject writeArrayHeader(ThreadContext ctx, IRubyObject size) {
+      encoder.writeArrayHeader(headerSize(ctx, size));
+      return flushIfFull(ctx);
+    }
+
+    @JRubyMethod(name = "write_map_header", required = 1)
+    public IRubyObject writeMapHeader(ThreadContext ctx, IRubyObject size) {
+      encoder.writeMapHeader(headerSize(ctx, size));
+      return flushIfFull(ctx);
+    }
+
+    private static int headerSize(ThreadContext ctx, IRubyObject size) {
+      int n = RubyNumeric.fix2int(size);
+      if (n < 0) {
+        throw ctx.getRuntime().newArgumentError(String.format("Size must not be negative: %d", n));
+      }
+      return n;
+    }
+
+    private IRubyObject flushIfFull(ThreadContext ctx) {
+      if (io != null && encoder.size() >= watermark) {
+        writeBuffer(ctx);
+      }
+      return this;
+    }
+
+    private void writeBuffer(ThreadContext ctx) {
+      if (encoder.size() > 0) {
+        if (deflater != null) {
+          deflater.write(ctx, io, encoder);
+        } else {
+          io.callMethod(ctx, "write", RubyString.newString(ctx.getRuntime(), encoder.toByteList()));
+        }
+        encoder.reset();
+      }
+    }
+
+    /**
+     * Writes the buffer to the IO. With compression the buffer becomes a
+     * block of its own, and this waits for the blocks that are still being
+     * compressed.
+     */
+    @JRubyMethod
+    public IRubyObject flush(ThreadContext ctx) {
+      if (io != null) {
+        writeBuffer(ctx);
+        if (deflater != null) {
+          deflater.drain(ctx, io);
+        }
+      }
+      return this;
+    }
+
+    @JRubyMethod(name = "to_s", alias = {"to_str"})
+    public IRubyObject toS(ThreadContext ctx) {
+      return RubyString.newString(ctx.getRuntime(), encoder.toByteList());
+    }
+
+    @JRubyMethod(name = "size")
+    public IRubyObject size(ThreadContext ctx) {
+      return ctx.getRuntime().newFixnum(encoder.size());
+    }
+
+    @JRubyMethod(name = "empty?")
+    public IRubyObject empty_q(ThreadContext ctx) {
+      return encoder.size() == 0 ? ctx.getRuntime().getTrue() : ctx.getRuntime().getFalse();
+    }
+
+    @JRubyMethod(alias = {"clear"})
+    public IRubyObject reset(ThreadContext ctx) {
+      encoder.reset();
+      return ctx.getRuntime().getNil();
+    }
+
+    @JRubyMethod(name = "io")
+    public IRubyObject getIo(ThreadContext ctx) {
+      if (io == null) {
+        return ctx.getRuntime().getNil();
+      } else {
+        return io;
+      }
     }
   }
 
   private static class UnpackerAllocator implements ObjectAllocator {
-    private MessagePack msgPack;
+    private RuntimeState state;
       
-    public UnpackerAllocator(MessagePack msgPack) {
-      this.msgPack = msgPack;
+    public UnpackerAllocator(RuntimeState state) {
+      this.state = state;
     }
       
     public IRubyObject allocate(Ruby runtime, RubyClass klass) {
-      return new Unpacker(runtime, klass, msgPack);
+      return new Unpacker(runtime, klass, state);
     }
   }
 
   @JRubyClass(name="MessagePack::Unpacker")
   public static class Unpacker extends RubyObject {
-    private MessagePack msgPack;
-    private RubyObjectUnpacker rubyObjectUnpacker;
-    private MessagePackBufferUnpacker bufferUnpacker;
-    private MessagePackUnpacker streamUnpacker;
-    private UnpackerIterator unpackerIterator;
+    private RuntimeState state;
+    private FeedBuffer feedBuffer;
+    private Decoder feedDecoder;
+    private StreamBuffer streamBuffer;
+    private Decoder streamDecoder;
+    private int bufferSize;
+    private boolean compressed;
+    private long bufferHighWaterMark;
+    private RubyHash reusedHash;
+    private RubyArray reusedArray;
     private IRubyObject stream;
     private IRubyObject data;
     private RubyObjectUnpacker.CompiledOptions options;
     
-    public Unpacker(Ruby runtime, RubyClass type, MessagePack msgPack) {
+    public Unpacker(Ruby runtime, RubyClass type, RuntimeState state) {
       super(runtime, type);
-      this.msgPack = msgPack;
-      this.rubyObjectUnpacker = new RubyObjectUnpacker(msgPack);
-      this.bufferUnpacker = null;
-      this.streamUnpacker = null;
+      this.state = state;
+      this.feedBuffer = null;
+      this.streamBuffer = null;
+      this.streamDecoder = null;
+      this.bufferSize = StreamBuffer.DEFAULT_SIZE;
       this.stream = null;
       this.data = null;
     }
 
     @JRubyMethod(name = "initialize", optional = 2, visibility = PRIVATE)
     public IRubyObject initialize(ThreadContext ctx, IRubyObject[] args) {
-      if (args.length == 0) {
-        options = new RubyObjectUnpacker.CompiledOptions(ctx.getRuntime());
-      } else if (args.length == 1 && args[0] instanceof RubyHash) {
-        options = new RubyObjectUnpacker.CompiledOptions(ctx.getRuntime(), (RubyHash) args[0]);
-      } else if (args.length > 0) {
-        setStream(ctx, args[0]);
-        if (args.length > 2) {
-          options = new RubyObjectUnpacker.CompiledOptions(ctx.getRuntime(), (RubyHash) args[1]);
-        } else {
-          options = new RubyObjectUnpacker.CompiledOptions(ctx.getRuntime());
+      RubyHash optionsHash = null;
+      if (args.length > 0 && args[args.length - 1] instanceof RubyHash) {
+        optionsHash = (RubyHash) args[args.length - 1];
+      }
+      if (optionsHash != null) {
+        IRubyObject rubyBufferSize = optionsHash.fastARef(ctx.getRuntime().newSymbol("buffer_size"));
+        if (rubyBufferSize != null && !rubyBufferSize.isNil()) {
+          bufferSize = RubyNumeric.fix2int(rubyBufferSize);
         }
       }
+      compressed = isCompressed(ctx.getRuntime(), optionsHash);
+      options = new RubyObjectUnpacker.CompiledOptions(ctx.getRuntime(), state, optionsHash);
+      if (args.length > 0 && !(args[0] instanceof RubyHash) && !args[0].isNil()) {
+        setStream(ctx, args[0]);
+      }
       return this;
     }
 
+    @JRubyMethod(name = "open_mapped", meta = true, required = 1, optional = 1)
+    public static IRubyObject openMapped(ThreadContext ctx, IRubyObject recv, IRubyObject[] args, Block block) throws IOException {
+      Ruby runtime = ctx.getRuntime();
+      RubyHash optionsHash = (args.length == 2) ? (RubyHash) args[1] : null;
+      int windowSize = StreamBuffer.DEFAULT_WINDOW_SIZE;
+      if (optionsHash != null) {
+        IRubyObject rubyWindowSize = optionsHash.fastARef(runtime.newSymbol("window_size"));
+        if (rubyWindowSize != null && !rubyWindowSize.isNil()) {
+          windowSize = RubyNumeric.fix2int(rubyWindowSize);
+        }
+      }
+      Unpacker unpacker = (Unpacker) ((RubyClass) recv).allocate();
+      unpacker.initialize(ctx, optionsHash == null ? new IRubyObject[0] : new IRubyObject[] {optionsHash});
+      String path = args[0].convertToString().toString();
+      try {
+        unpacker.streamBuffer = StreamBuffer.forFile(path, windowSize);
+      } catch (FileNotFoundException fnfe) {
+        throw runtime.newErrnoENOENTError(path);
+      }
+      unpacker.streamDecoder = new Decoder(runtime, unpacker.options, unpacker.streamBuffer);
+      if (block.isGiven()) {
+        try {
+          return block.yield(ctx, unpacker);
+        } finally {
+          unpacker.close(ctx);
+        }
+      } else {
+        return unpacker;
+      }
+    }
+
     @JRubyMethod(required = 2)
     public IRubyObject execute(ThreadContext ctx, IRubyObject data, IRubyObject offset) {
       return executeLimit(ctx, data, offset, null);
@@ -128,19 +797,24 @@ public class MessagePackLibrary implements Library {
     @JRubyMethod(name = "execute_limit", required = 3)
     public IRubyObject executeLimit(ThreadContext ctx, IRubyObject data, IRubyObject offset, IRubyObject limit) {
       this.data = null;
+      ByteList bytes = data.asString().getByteList();
+      int jOffset = RubyNumeric.fix2int(offset);
+      int jLimit = bytes.length() - jOffset;
+      if (limit != null) {
+        jLimit = RubyNumeric.fix2int(limit);
+      }
+      if (jOffset < 0 || jLimit < 0 || jOffset + jLimit > bytes.length()) {
+        throw ctx.getRuntime().newArgumentError(String.format("Offset and limit out of range: %d, %d", jOffset, jLimit));
+      }
+      int window = Math.min(jLimit, options.maxBytes);
+      ByteBuffer buffer = ByteBuffer.wrap(bytes.unsafeBytes(), bytes.begin() + jOffset, window);
       try {
-        int jOffset = RubyNumeric.fix2int(offset);
-        int jLimit = -1;
-        if (limit != null) {
-          jLimit = RubyNumeric.fix2int(limit);
-        }
-        byte[] bytes = data.asString().getBytes();
-        MessagePackBufferUnpacker localBufferUnpacker = new MessagePackBufferUnpacker(msgPack, bytes.length);
-        localBufferUnpacker.wrap(bytes, jOffset, jLimit == -1 ? bytes.length - jOffset : jLimit);
-        this.data = rubyObjectUnpacker.valueToRubyObject(ctx.getRuntime(), localBufferUnpacker.readValue(), options);
-        return ctx.getRuntime().newFixnum(jOffset + localBufferUnpacker.getReadByteCount());
-      } catch (IOException ioe) {
-        // TODO: how to throw Ruby exceptions?
+        this.data = new Decoder(ctx.getRuntime(), options, buffer).nextValue();
+        return ctx.getRuntime().newFixnum(buffer.position() - bytes.begin());
+      } catch (BufferUnderflowException bue) {
+        if (window < jLimit) {
+          options.checkBytes(ctx.getRuntime(), jLimit);
+        }
         return ctx.getRuntime().getNil();
       }
     }
@@ -161,40 +835,118 @@ public class MessagePackLibrary implements Library {
 
     @JRubyMethod(required = 1)
     public IRubyObject feed(ThreadContext ctx, IRubyObject data) {
-      streamUnpacker = null;
-      byte[] bytes = data.asString().getBytes();
-      if (bufferUnpacker == null) {
-        bufferUnpacker = new MessagePackBufferUnpacker(msgPack);
-        unpackerIterator = bufferUnpacker.iterator();
+      streamBuffer = null;
+      streamDecoder = null;
+      if (feedBuffer == null) {
+        feedBuffer = new FeedBuffer();
+        feedDecoder = new Decoder(ctx.getRuntime(), options, feedBuffer);
+      }
+      RubyString str = data.asString();
+      if (options.maxBufferSize < Integer.MAX_VALUE && (long) feedBuffer.size() + str.getByteList().length() > options.maxBufferSize) {
+        throw Decoder.unpackError(ctx.getRuntime(), String.format("Buffered data exceeds the limit of %d bytes", options.maxBufferSize));
+      }
+      feedBuffer.feed(str);
+      if (options.metrics.isEnabled()) {
+        bufferHighWaterMark = Math.max(bufferHighWaterMark, feedBuffer.size());
+        options.metrics.feedBufferSize(bufferHighWaterMark);
       }
-      bufferUnpacker.feed(bytes);
       return ctx.getRuntime().getNil();
     }
 
+    @JRubyMethod(name = "buffer_high_water_mark")
+    public IRubyObject bufferHighWaterMark(ThreadContext ctx) {
+      return ctx.getRuntime().newFixnum(bufferHighWaterMark);
+    }
+
+    /**
+     * Returns the next object that has been fed, or :need_more when it
+     * hasn't arrived yet. Never blocks, which makes it suitable for event
+     * loops that feed whatever a socket had to offer.
+     */
+    @JRubyMethod(name = "read_nonblock")
+    public IRubyObject readNonblock(ThreadContext ctx) {
+      checkFeedMode(ctx);
+      IRubyObject value = null;
+      if (feedBuffer != null) {
+        feedDecoder.reuse(null, null);
+        value = feedDecoder.nextFromFeed();
+      }
+      return value == null ? ctx.getRuntime().newSymbol("need_more") : value;
+    }
+
+    /**
+     * The number of bytes that must be fed at the very least before the
+     * next object is complete, zero when it already is.
+     */
+    @JRubyMethod(name = "bytes_needed")
+    public IRubyObject bytesNeeded(ThreadContext ctx) {
+      checkFeedMode(ctx);
+      return ctx.getRuntime().newFixnum(feedBuffer == null ? 1 : feedDecoder.bytesNeeded());
+    }
+
+    private void checkFeedMode(ThreadContext ctx) {
+      if (streamDecoder != null) {
+        throw ctx.getRuntime().newIOError("Unpacker is reading a stream, not fed data");
+      }
+    }
+
     @JRubyMethod(name = "feed_each", required = 1)
-    public IRubyObject feedEach(ThreadContext ctx, IRubyObject data, Block block) {
+    public IRubyObject feedEach(ThreadContext ctx, IRubyObject data, Block block) throws IOException {
       feed(ctx, data);
       each(ctx, block);
       return ctx.getRuntime().getNil();
     }
-    
+
+    @JRubyMethod(name = "feed_each", required = 2)
+    public IRubyObject feedEach(ThreadContext ctx, IRubyObject data, IRubyObject eachOptions, Block block) throws IOException {
+      feed(ctx, data);
+      each(ctx, eachOptions, block);
+      return ctx.getRuntime().getNil();
+    }
+
     @JRubyMethod
-    public IRubyObject each(ThreadContext ctx, Block block) {
-      MessagePackUnpacker localUnpacker = null;
-      if (bufferUnpacker == null && streamUnpacker != null) {
-        localUnpacker = streamUnpacker;
-      } else if (bufferUnpacker != null) {
-        localUnpacker = bufferUnpacker;
-      } else {
+    public IRubyObject each(ThreadContext ctx, Block block) throws IOException {
+      return each(ctx, null, block);
+    }
+
+    /**
+     * With :reuse => true every top level map is decoded into the same
+     * hash, and every top level array into the same array, which the block
+     * must be done with before it returns.
+     */
+    @JRubyMethod(required = 1)
+    public IRubyObject each(ThreadContext ctx, IRubyObject eachOptions, Block block) throws IOException {
+      if (feedBuffer == null && streamDecoder == null) {
         return ctx.getRuntime().getNil();
       }
       if (block.isGiven()) {
-        while (unpackerIterator.hasNext()) {
-          Value value = unpackerIterator.next();
-          IRubyObject rubyObject = rubyObjectUnpacker.valueToRubyObject(ctx.getRuntime(), value, options);
-          block.yield(ctx, rubyObject);
+        Decoder decoder = (feedBuffer != null) ? feedDecoder : streamDecoder;
+        IRubyObject reuse = null;
+        if (eachOptions instanceof RubyHash) {
+          reuse = ((RubyHash) eachOptions).fastARef(ctx.getRuntime().newSymbol("reuse"));
+        }
+        if (reuse != null && reuse.isTrue()) {
+          if (reusedHash == null) {
+            reusedHash = RubyHash.newHash(ctx.getRuntime());
+            reusedArray = RubyArray.newArray(ctx.getRuntime());
+          }
+          decoder.reuse(reusedHash, reusedArray);
+        } else {
+          decoder.reuse(null, null);
+        }
+        IRubyObject rubyObject;
+        if (feedBuffer != null) {
+          while ((rubyObject = feedDecoder.nextFromFeed()) != null) {
+            block.yield(ctx, rubyObject);
+          }
+        } else {
+          while ((rubyObject = streamDecoder.nextFromStream(ctx)) != null) {
+            block.yield(ctx, rubyObject);
+          }
         }
         return ctx.getRuntime().getNil();
+      } else if (eachOptions != null) {
+        return callMethod(ctx, "to_enum", new IRubyObject[] {ctx.getRuntime().newSymbol("each"), eachOptions});
       } else {
         return callMethod(ctx, "to_enum");
       }
@@ -207,11 +959,8 @@ public class MessagePackLibrary implements Library {
 
     @JRubyMethod
     public IRubyObject reset(ThreadContext ctx) {
-      if (bufferUnpacker != null) {
-        bufferUnpacker.reset();
-      }
-      if (streamUnpacker != null) {
-        streamUnpacker.reset();
+      if (feedBuffer != null) {
+        feedDecoder.clearFeed();
       }
       return ctx.getRuntime().getNil();
     }
@@ -227,18 +976,265 @@ public class MessagePackLibrary implements Library {
 
     @JRubyMethod(name = "stream=", required = 1)
     public IRubyObject setStream(ThreadContext ctx, IRubyObject stream) {
-      bufferUnpacker = null;
+      feedBuffer = null;
+      feedDecoder = null;
       this.stream = stream;
-      RubyClass stringio = ctx.getRuntime().getClass("StringIO");
-      if (stringio != null && stringio.isInstance(stream)) {
-        IRubyObject str = stream.callMethod(ctx, "string");
-        byte[] bytes = ((RubyString) str).getBytes();
-        streamUnpacker = new MessagePackUnpacker(msgPack, new ByteArrayInputStream(bytes));
+      if (compressed) {
+        streamBuffer = StreamBuffer.forCompressedIO(ctx, stream, Math.min(bufferSize, options.maxBufferSize), options.maxBufferSize);
       } else {
-        streamUnpacker = new MessagePackUnpacker(msgPack, new IOInputStream(stream));
+        streamBuffer = StreamBuffer.forIO(ctx, stream, Math.min(bufferSize, options.maxBufferSize), options.maxBufferSize);
       }
-      unpackerIterator = streamUnpacker.iterator();
+      streamDecoder = new Decoder(ctx.getRuntime(), options, streamBuffer);
       return getStream(ctx);
     }
+
+    @JRubyMethod(name = "pos")
+    public IRubyObject getPos(ThreadContext ctx) {
+      return ctx.getRuntime().newFixnum(mappedBuffer(ctx).position());
+    }
+
+    @JRubyMethod(required = 1)
+    public IRubyObject seek(ThreadContext ctx, IRubyObject offset) throws IOException {
+      StreamBuffer mapped = mappedBuffer(ctx);
+      long jOffset = RubyNumeric.num2long(offset);
+      try {
+        mapped.seek(jOffset);
+      } catch (IOException ioe) {
+        throw ctx.getRuntime().newArgumentError(ioe.getMessage());
+      }
+      streamDecoder.setBuffer(mapped.getBuffer());
+      return ctx.getRuntime().newFixnum(jOffset);
+    }
+
+    @JRubyMethod
+    public IRubyObject close(ThreadContext ctx) throws IOException {
+      if (streamBuffer != null) {
+        streamBuffer.close();
+      }
+      return ctx.getRuntime().getNil();
+    }
+
+    private StreamBuffer mappedBuffer(ThreadContext ctx) {
+      if (streamBuffer == null || !streamBuffer.isMapped() || streamDecoder == null) {
+        throw ctx.getRuntime().newIOError("Unpacker is not reading a mapped file");
+      }
+      return streamBuffer;
+    }
+  }
+
+  private static class RpcCodecAllocator implements ObjectAllocator {
+    private RuntimeState state;
+
+    public RpcCodecAllocator(RuntimeState state) {
+      this.state = state;
+    }
+
+    public IRubyObject allocate(Ruby runtime, RubyClass klass) {
+      return new RpcCodec(runtime, klass, state);
+    }
+  }
+
+  /**
+   * Frames MessagePack-RPC messages: [0, msgid, method, params] requests,
+   * [1, msgid, error, result] responses and [2, method, params]
+   * notifications. Outgoing messages are encoded into one buffer that is
+   * written with a single call, and #feed decodes every complete message
+   * in a chunk in one go. Responses are kept by msgid until they are taken
+   * with #response, so callers can pipeline many requests and pick up the
+   * answers in any order. Responses to msgids that aren't pending are
+   * dropped. Not thread safe, use one per connection.
+   */
+  @JRubyClass(name="MessagePack::RPC::Codec")
+  public static class RpcCodec extends RubyObject {
+    static final int REQUEST = 0;
+    static final int RESPONSE = 1;
+    static final int NOTIFICATION = 2;
+
+    private RuntimeState state;
+    private Encoder encoder;
+    private FeedBuffer feedBuffer;
+    private Decoder decoder;
+    private RubyObjectPacker.CompiledOptions packOptions;
+    private RubyObjectUnpacker.CompiledOptions unpackOptions;
+    private long nextMsgid;
+    private Set<Long> pending;
+    private Map<Long, IRubyObject> responses;
+    private RaiseException invalidMessage;
+
+    public RpcCodec(Ruby runtime, RubyClass type, RuntimeState state) {
+      super(runtime, type);
+      this.state = state;
+      this.encoder = new Encoder();
+      this.feedBuffer = new FeedBuffer();
+      this.pending = new HashSet<Long>();
+      this.responses = new HashMap<Long, IRubyObject>();
+    }
+
+    @JRubyMethod(name = "initialize", optional = 1, visibility = PRIVATE)
+    public IRubyObject initialize(ThreadContext ctx, IRubyObject[] args) {
+      RubyHash options = (args.length > 0 && args[0] instanceof RubyHash) ? (RubyHash) args[0] : null;
+      packOptions = new RubyObjectPacker.CompiledOptions(ctx.getRuntime(), state, options);
+      unpackOptions = new RubyObjectUnpacker.CompiledOptions(ctx.getRuntime(), state, options);
+      decoder = new Decoder(ctx.getRuntime(), unpackOptions, feedBuffer);
+      return this;
+    }
+
+    @JRubyMethod(required = 2)
+    public IRubyObject request(ThreadContext ctx, IRubyObject method, IRubyObject params) {
+      long msgid = nextMsgid;
+      nextMsgid = (nextMsgid + 1) & 0xffffffffL;
+      RubyArray paramsArray = params.convertToArray();
+      encoder.writeArrayHeader(4);
+      encoder.writeLong(REQUEST);
+      encoder.writeLong(msgid);
+      state.packer.write(encoder, method, packOptions);
+      state.packer.write(encoder, paramsArray, packOptions);
+      pending.add(msgid);
+      return ctx.getRuntime().newFixnum(msgid);
+    }
+
+    @JRubyMethod(required = 2)
+    public IRubyObject notify(ThreadContext ctx, IRubyObject method, IRubyObject params) {
+      RubyArray paramsArray = params.convertToArray();
+      encoder.writeArrayHeader(3);
+      encoder.writeLong(NOTIFICATION);
+      state.packer.write(encoder, method, packOptions);
+      state.packer.write(encoder, paramsArray, packOptions);
+      return ctx.getRuntime().getNil();
+    }
+
+    @JRubyMethod(required = 3)
+    public IRubyObject respond(ThreadContext ctx, IRubyObject msgid, IRubyObject error, IRubyObject result) {
+      encoder.writeArrayHeader(4);
+      encoder.writeLong(RESPONSE);
+      encoder.writeLong(RubyNumeric.num2long(msgid));
+      state.packer.write(encoder, error, packOptions);
+      state.packer.write(encoder, result, packOptions);
+      return ctx.getRuntime().getNil();
+    }
+
+    @JRubyMethod(name = "size")
+    public IRubyObject size(ThreadContext ctx) {
+      return ctx.getRuntime().newFixnum(encoder.size());
+    }
+
+    /**
+     * Returns the encoded messages and empties the buffer.
+     */
+    @JRubyMethod
+    public IRubyObject take(ThreadContext ctx) {
+      RubyString str = RubyString.newString(ctx.getRuntime(), encoder.toByteList());
+      encoder.reset();
+      return str;
+    }
+
+    @JRubyMethod(name = "write_to", required = 1)
+    public IRubyObject writeTo(ThreadContext ctx, IRubyObject io) {
+      int size = encoder.size();
+      if (size > 0) {
+        io.callMethod(ctx, "write", take(ctx));
+      }
+      return ctx.getRuntime().newFixnum(size);
+    }
+
+    /**
+     * Decodes every complete message in the fed data. Responses are kept
+     * for #response, requests and notifications are returned in an array.
+     * An invalid message, or data that can't be decoded, raises once the
+     * valid messages before it have been returned, so when some were returned
+     * the error is raised by the next call, after its data has been buffered.
+     */
+    @JRubyMethod(required = 1)
+    public IRubyObject feed(ThreadContext ctx, IRubyObject data) {
+      Ruby runtime = ctx.getRuntime();
+      RubyString str = data.asString();
+      if (unpackOptions.maxBufferSize < Integer.MAX_VALUE && (long) feedBuffer.size() + str.getByteList().length() > unpackOptions.maxBufferSize) {
+        throw Decoder.unpackError(runtime, String.format("Buffered data exceeds the limit of %d bytes", unpackOptions.maxBufferSize));
+      }
+      feedBuffer.feed(str);
+      if (invalidMessage != null) {
+        RaiseException e = invalidMessage;
+        invalidMessage = null;
+        throw e;
+      }
+      RubyArray messages = RubyArray.newArray(runtime);
+      RaiseException error = null;
+      while (true) {
+        IRubyObject message;
+        try {
+          message = decoder.nextFromFeed();
+        } catch (RaiseException e) {
+          if (error == null) {
+            error = e;
+          }
+          break;
+        }
+        if (message == null) {
+          break;
+        }
+        int type;
+        try {
+          type = messageType(runtime, message);
+        } catch (RaiseException e) {
+          if (error == null) {
+            error = e;
+          }
+          continue;
+        }
+        RubyArray array = (RubyArray) message;
+        if (type == RESPONSE) {
+          long msgid = RubyNumeric.num2long(array.eltInternal(1));
+          if (pending.remove(msgid)) {
+            responses.put(msgid, RubyArray.newArray(runtime, array.eltInternal(2), array.eltInternal(3)));
+          }
+        } else {
+          messages.append(message);
+        }
+      }
+      if (error != null) {
+        if (messages.isEmpty()) {
+          throw error;
+        }
+        invalidMessage = error;
+      }
+      return messages;
+    }
+
+    private static int messageType(Ruby runtime, IRubyObject message) {
+      if (message instanceof RubyArray) {
+        RubyArray array = (RubyArray) message;
+        long type = array.size() > 0 && array.eltInternal(0) instanceof RubyFixnum ? ((RubyFixnum) array.eltInternal(0)).getLongValue() : -1;
+        if (array.size() == 4 && (type == REQUEST || type == RESPONSE) && isMsgid(array.eltInternal(1))) {
+          return (int) type;
+        } else if (array.size() == 3 && type == NOTIFICATION) {
+          return NOTIFICATION;
+        }
+      }
+      throw Decoder.unpackError(runtime, String.format("Invalid RPC message: %s", message.inspect()));
+    }
+
+    private static boolean isMsgid(IRubyObject msgid) {
+      return msgid instanceof RubyFixnum && ((RubyFixnum) msgid).getLongValue() >= 0;
+    }
+
+    @JRubyMethod(name = "response?", required = 1)
+    public IRubyObject response_p(ThreadContext ctx, IRubyObject msgid) {
+      return ctx.getRuntime().newBoolean(responses.containsKey(RubyNumeric.num2long(msgid)));
+    }
+
+    /**
+     * Returns and forgets the [error, result] pair for a msgid, or nil
+     * when its response hasn't arrived.
+     */
+    @JRubyMethod(required = 1)
+    public IRubyObject response(ThreadContext ctx, IRubyObject msgid) {
+      IRubyObject response = responses.remove(RubyNumeric.num2long(msgid));
+      return response == null ? ctx.getRuntime().getNil() : response;
+    }
+
+    @JRubyMethod
+    public IRubyObject pending(ThreadContext ctx) {
+      return ctx.getRuntime().newFixnum(pending.size());
+    }
   }
 }
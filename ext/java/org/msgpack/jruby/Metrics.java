@@ -0,0 +1,253 @@
+package org.msgpack.jruby;
+
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.jruby.Finalizable;
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import org.jruby.runtime.builtin.IRubyObject;
+
+
+/**
+ * Counters for what the packers and unpackers of one runtime are doing.
+ * They are off by default and cost a volatile read per value while off.
+ * When on, the decoder counts objects in a local array and adds them to
+ * the striped counters once per top level value.
+ */
+class Metrics implements MetricsMBean {
+  public static final int NIL = 0;
+  public static final int BOOLEAN = 1;
+  public static final int INTEGER = 2;
+  public static final int FLOAT = 3;
+  public static final int STRING = 4;
+  public static final int ARRAY = 5;
+  public static final int MAP = 6;
+  public static final int EXTENSION = 7;
+  public static final int BINARY = 8;
+  public static final int OBJECT_TYPES = 9;
+
+  private static final String[] OBJECT_TYPE_NAMES = {"nil", "boolean", "integer", "float", "string", "array", "map", "extension", "binary"};
+
+  private static final int BYTES_PACKED = 0;
+  private static final int VALUES_PACKED = 1;
+  private static final int BYTES_UNPACKED = 2;
+  private static final int VALUES_UNPACKED = 3;
+  private static final int BUFFER_GROWTHS = 4;
+  private static final int TRANSCODES = 5;
+  private static final int COUNTERS = 6;
+
+  private static final int LATENCY_BUCKETS = 40;
+
+  private final StripedCounters counters;
+  private final StripedCounters objects;
+  private final StripedCounters packLatency;
+  private final StripedCounters unpackLatency;
+  private final AtomicLong feedBufferHighWaterMark;
+  private volatile boolean enabled;
+  private ObjectName objectName;
+  private Finalizable unregister;
+
+  public Metrics() {
+    this.counters = new StripedCounters(COUNTERS);
+    this.objects = new StripedCounters(OBJECT_TYPES);
+    this.packLatency = new StripedCounters(LATENCY_BUCKETS);
+    this.unpackLatency = new StripedCounters(LATENCY_BUCKETS);
+    this.feedBufferHighWaterMark = new AtomicLong();
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Turns the counters on and registers the MBean, which is unregistered
+   * again by #disable or when the runtime is torn down.
+   */
+  public synchronized void enable(Ruby runtime) {
+    if (enabled) {
+      return;
+    }
+    enabled = true;
+    try {
+      ObjectName name = new ObjectName("org.msgpack.jruby:type=Metrics,runtime=" + runtime.getRuntimeNumber());
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(new StandardMBean(this, MetricsMBean.class), name);
+      objectName = name;
+      unregister = new Unregister(this);
+      runtime.addInternalFinalizer(unregister);
+    } catch (JMException jme) {
+      runtime.getWarnings().warn(String.format("Could not register the MessagePack metrics MBean: %s", jme.getMessage()));
+    }
+  }
+
+  public synchronized void disable(Ruby runtime) {
+    enabled = false;
+    if (unregister != null) {
+      runtime.removeInternalFinalizer(unregister);
+      unregister = null;
+    }
+    unregisterMBean();
+  }
+
+  /**
+   * Unregisters the MBean when the runtime is torn down. The field that
+   * holds it keeps it from being collected (and finalized) before that,
+   * since the runtime only holds on to it weakly.
+   */
+  private static class Unregister implements Finalizable {
+    private final Metrics metrics;
+
+    public Unregister(Metrics metrics) {
+      this.metrics = metrics;
+    }
+
+    @SuppressWarnings("deprecation")
+    public void finalize() {
+      metrics.unregisterMBean();
+    }
+  }
+
+  private synchronized void unregisterMBean() {
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException jme) {
+        // someone else unregistered it, which is just as good
+      }
+      objectName = null;
+    }
+  }
+
+  public void reset() {
+    counters.reset();
+    objects.reset();
+    packLatency.reset();
+    unpackLatency.reset();
+    feedBufferHighWaterMark.set(0);
+  }
+
+  public void packed(int bytes, long nanos, int growths) {
+    counters.add(BYTES_PACKED, bytes);
+    counters.add(VALUES_PACKED, 1);
+    if (growths > 0) {
+      counters.add(BUFFER_GROWTHS, growths);
+    }
+    packLatency.add(bucket(nanos), 1);
+  }
+
+  public void unpacked(long bytes, long nanos, long[] objectCounts) {
+    counters.add(BYTES_UNPACKED, bytes);
+    counters.add(VALUES_UNPACKED, 1);
+    objects.add(objectCounts);
+    unpackLatency.add(bucket(nanos), 1);
+  }
+
+  public void bufferGrown() {
+    counters.add(BUFFER_GROWTHS, 1);
+  }
+
+  public void transcoded() {
+    counters.add(TRANSCODES, 1);
+  }
+
+  public void feedBufferSize(long size) {
+    long max = feedBufferHighWaterMark.get();
+    while (size > max && !feedBufferHighWaterMark.compareAndSet(max, size)) {
+      max = feedBufferHighWaterMark.get();
+    }
+  }
+
+  private static int bucket(long nanos) {
+    return Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(nanos, 0)));
+  }
+
+  public long getBytesPacked() {
+    return counters.get(BYTES_PACKED);
+  }
+
+  public long getValuesPacked() {
+    return counters.get(VALUES_PACKED);
+  }
+
+  public long getBytesUnpacked() {
+    return counters.get(BYTES_UNPACKED);
+  }
+
+  public long getValuesUnpacked() {
+    return counters.get(VALUES_UNPACKED);
+  }
+
+  public String[] getObjectTypes() {
+    return OBJECT_TYPE_NAMES.clone();
+  }
+
+  public long[] getObjectsUnpacked() {
+    return objects.toArray();
+  }
+
+  public long getBufferGrowths() {
+    return counters.get(BUFFER_GROWTHS);
+  }
+
+  public long getFeedBufferHighWaterMark() {
+    return feedBufferHighWaterMark.get();
+  }
+
+  public long getTranscodes() {
+    return counters.get(TRANSCODES);
+  }
+
+  public long[] getPackLatencyHistogram() {
+    return packLatency.toArray();
+  }
+
+  public long[] getUnpackLatencyHistogram() {
+    return unpackLatency.toArray();
+  }
+
+  public RubyHash toHash(Ruby runtime) {
+    RubyHash hash = RubyHash.newHash(runtime);
+    put(runtime, hash, "enabled", runtime.newBoolean(enabled));
+    put(runtime, hash, "bytes_packed", runtime.newFixnum(getBytesPacked()));
+    put(runtime, hash, "values_packed", runtime.newFixnum(getValuesPacked()));
+    put(runtime, hash, "bytes_unpacked", runtime.newFixnum(getBytesUnpacked()));
+    put(runtime, hash, "values_unpacked", runtime.newFixnum(getValuesUnpacked()));
+    RubyHash objectsHash = RubyHash.newHash(runtime);
+    long[] objectCounts = getObjectsUnpacked();
+    for (int i = 0; i < OBJECT_TYPES; i++) {
+      put(runtime, objectsHash, OBJECT_TYPE_NAMES[i], runtime.newFixnum(objectCounts[i]));
+    }
+    put(runtime, hash, "objects_unpacked", objectsHash);
+    put(runtime, hash, "buffer_growths", runtime.newFixnum(getBufferGrowths()));
+    put(runtime, hash, "feed_buffer_high_water_mark", runtime.newFixnum(getFeedBufferHighWaterMark()));
+    put(runtime, hash, "transcodes", runtime.newFixnum(getTranscodes()));
+    put(runtime, hash, "pack_latency", histogram(runtime, getPackLatencyHistogram()));
+    put(runtime, hash, "unpack_latency", histogram(runtime, getUnpackLatencyHistogram()));
+    return hash;
+  }
+
+  private static void put(Ruby runtime, RubyHash hash, String key, IRubyObject value) {
+    hash.fastASet(runtime.newSymbol(key), value);
+  }
+
+  /**
+   * A hash from the upper bound of each non-empty bucket, in nanoseconds,
+   * to the number of calls in it.
+   */
+  private static RubyHash histogram(Ruby runtime, long[] buckets) {
+    RubyHash hash = RubyHash.newHash(runtime);
+    for (int i = 0; i < buckets.length; i++) {
+      if (buckets[i] > 0) {
+        hash.fastASet(runtime.newFixnum(1L << i), runtime.newFixnum(buckets[i]));
+      }
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,37 @@
+package org.msgpack.jruby;
+
+
+/**
+ * The JMX view of the counters that MessagePack.enable_stats turns on. One
+ * is registered per JRuby runtime, as
+ * org.msgpack.jruby:type=Metrics,runtime=N.
+ *
+ * Latency histograms have one bucket per power of two nanoseconds, bucket
+ * i counts the calls that took less than 2^i ns (the last bucket also
+ * counts everything slower).
+ */
+public interface MetricsMBean {
+  long getBytesPacked();
+
+  long getValuesPacked();
+
+  long getBytesUnpacked();
+
+  long getValuesUnpacked();
+
+  String[] getObjectTypes();
+
+  long[] getObjectsUnpacked();
+
+  long getBufferGrowths();
+
+  long getFeedBufferHighWaterMark();
+
+  long getTranscodes();
+
+  long[] getPackLatencyHistogram();
+
+  long[] getUnpackLatencyHistogram();
+
+  void reset();
+}
@@ -2,14 +2,14 @@ package org.msgpack.jruby;
 
 
 import java.io.IOException;
+import java.math.BigInteger;
 
 import org.jcodings.Encoding;
+import org.jcodings.specific.ASCIIEncoding;
 
 import org.msgpack.MessagePack;
-import org.msgpack.packer.BufferPacker;
 
 import org.jruby.Ruby;
-import org.jruby.RubyObject;
 import org.jruby.RubyNil;
 import org.jruby.RubyBoolean;
 import org.jruby.RubyBignum;
@@ -20,37 +20,58 @@ import org.jruby.RubyString;
 import org.jruby.RubySymbol;
 import org.jruby.RubyArray;
 import org.jruby.RubyHash;
+import org.jruby.RubyTime;
 import org.jruby.RubyEncoding;
 import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.runtime.encoding.EncodingService;
 
 
 public class RubyObjectPacker {
-  private final MessagePack msgPack;
+  private static final ThreadLocal<Encoder> cachedEncoder = new ThreadLocal<Encoder>();
+
+  public RubyObjectPacker() {
+  }
 
   public RubyObjectPacker(MessagePack msgPack) {
-    this.msgPack = msgPack;
+    this();
   }
 
   static class CompiledOptions {
     public final Encoding encoding;
+    public final boolean binary;
+    public final ExtensionRegistry extensions;
+    public final Metrics metrics;
 
     public CompiledOptions(Ruby runtime, RubyHash options) {
+      this(runtime, RuntimeState.get(runtime), options);
+    }
+
+    public CompiledOptions(Ruby runtime, RuntimeState state, RubyHash options) {
       EncodingService encodingService = runtime.getEncodingService();
       Encoding externalEncoding = null;
+      boolean binaryFormats = false;
       if (options != null) {
         IRubyObject rubyEncoding = options.fastARef(runtime.newSymbol("encoding"));
         externalEncoding = encodingService.getEncodingFromObject(rubyEncoding);
+        IRubyObject rubyBinary = options.fastARef(runtime.newSymbol("binary"));
+        binaryFormats = rubyBinary != null && rubyBinary.isTrue();
       }
+      binary = binaryFormats;
       if (externalEncoding == null) {
         externalEncoding = runtime.getDefaultExternalEncoding();
       }
       encoding = (externalEncoding != encodingService.getAscii8bitEncoding()) ? externalEncoding : null;
+      extensions = state.extensions;
+      metrics = state.metrics;
     }
   }
 
   public RubyString pack(IRubyObject o, RubyHash options) throws IOException {
-    return RubyString.newStringNoCopy(o.getRuntime(), packRaw(o, new CompiledOptions(o.getRuntime(), options)));
+    return pack(o, new CompiledOptions(o.getRuntime(), options));
+  }
+
+  RubyString pack(IRubyObject o, CompiledOptions options) throws IOException {
+    return RubyString.newStringNoCopy(o.getRuntime(), packRaw(o, options));
   }
 
   @Deprecated
@@ -71,83 +92,153 @@ public class RubyObjectPacker {
   }
 
   byte[] packRaw(IRubyObject o, CompiledOptions options) throws IOException {
-    BufferPacker packer = msgPack.createBufferPacker();
-    write(packer, o, options);
-    return packer.toByteArray();
+    Encoder encoder = acquireEncoder();
+    try {
+      writeValue(encoder, o, options);
+      return encoder.toByteArray();
+    } finally {
+      releaseEncoder(encoder);
+    }
+  }
+
+  static Encoder acquireEncoder() {
+    Encoder encoder = cachedEncoder.get();
+    if (encoder == null) {
+      encoder = new Encoder();
+    } else {
+      cachedEncoder.set(null);
+    }
+    return encoder;
+  }
+
+  static void releaseEncoder(Encoder encoder) {
+    encoder.reset();
+    cachedEncoder.set(encoder);
+  }
+
+  /**
+   * Writes a top level value, and records it in the metrics when they are
+   * enabled.
+   */
+  void writeValue(Encoder encoder, IRubyObject o, CompiledOptions options) {
+    if (!options.metrics.isEnabled()) {
+      write(encoder, o, options);
+      return;
+    }
+    int start = encoder.size();
+    encoder.takeGrowths();
+    long startTime = System.nanoTime();
+    write(encoder, o, options);
+    options.metrics.packed(encoder.size() - start, System.nanoTime() - startTime, encoder.takeGrowths());
   }
 
-  private void write(BufferPacker packer, IRubyObject o, CompiledOptions options) throws IOException {
+  void write(Encoder encoder, IRubyObject o, CompiledOptions options) {
     if (o == null || o instanceof RubyNil) {
-      packer.writeNil();
+      encoder.writeNil();
     } else if (o instanceof RubyBoolean) {
-      packer.write(((RubyBoolean) o).isTrue());
+      encoder.writeBoolean(((RubyBoolean) o).isTrue());
     } else if (o instanceof RubyBignum) {
-      write(packer, (RubyBignum) o);
+      write(encoder, (RubyBignum) o);
     } else if (o instanceof RubyInteger) {
-      write(packer, (RubyInteger) o);
+      write(encoder, (RubyInteger) o);
     } else if (o instanceof RubyFixnum) {
-      write(packer, (RubyFixnum) o);
+      write(encoder, (RubyFixnum) o);
     } else if (o instanceof RubyFloat) {
-      write(packer, (RubyFloat) o);
+      write(encoder, (RubyFloat) o);
     } else if (o instanceof RubyString) {
-      write(packer, (RubyString) o, options);
+      write(encoder, (RubyString) o, options);
     } else if (o instanceof RubySymbol) {
-      write(packer, (RubySymbol) o, options);
+      write(encoder, (RubySymbol) o, options);
     } else if (o instanceof RubyArray) {
-      write(packer, (RubyArray) o, options);
+      write(encoder, (RubyArray) o, options);
     } else if (o instanceof RubyHash) {
-      write(packer, (RubyHash) o, options);
+      write(encoder, (RubyHash) o, options);
+    } else if (o instanceof RubyTime && options.extensions.forClass(o.getMetaClass().getRealClass()) == null) {
+      write(encoder, (RubyTime) o);
     } else {
-      throw o.getRuntime().newArgumentError(String.format("Cannot pack type: %s", o.getClass().getName()));
+      ExtensionRegistry.Entry extension = options.extensions.forClass(o.getMetaClass().getRealClass());
+      if (extension == null) {
+        throw o.getRuntime().newArgumentError(String.format("Cannot pack type: %s", o.getClass().getName()));
+      }
+      write(encoder, o, extension);
+    }
+  }
+
+  private void write(Encoder encoder, IRubyObject o, ExtensionRegistry.Entry extension) {
+    RubyString payload = extension.pack(o.getRuntime().getCurrentContext(), o);
+    encoder.writeExt(extension.type, payload.getByteList());
+  }
+
+  private void write(Encoder encoder, RubyBignum bignum) {
+    BigInteger value = bignum.getBigIntegerValue();
+    if (value.bitLength() > 64 || (value.bitLength() == 64 && value.signum() < 0)) {
+      throw bignum.getRuntime().newRangeError(String.format("Cannot pack integer out of range: %s", value));
     }
+    encoder.writeBigInteger(value);
   }
 
-  private void write(BufferPacker packer, RubyBignum bignum) throws IOException {
-    packer.write(bignum.getBigIntegerValue());
+  private void write(Encoder encoder, RubyInteger integer) {
+    encoder.writeLong(integer.getLongValue());
   }
 
-  private void write(BufferPacker packer, RubyInteger integer) throws IOException {
-    packer.write(integer.getLongValue());
+  private void write(Encoder encoder, RubyFixnum fixnum) {
+    encoder.writeLong(fixnum.getLongValue());
   }
 
-  private void write(BufferPacker packer, RubyFixnum fixnum) throws IOException {
-    packer.write(fixnum.getLongValue());
+  private void write(Encoder encoder, RubyFloat flt) {
+    encoder.writeDouble(flt.getDoubleValue());
   }
 
-  private void write(BufferPacker packer, RubyFloat flt) throws IOException {
-    packer.write(flt.getDoubleValue());
+  private void write(Encoder encoder, RubyTime time) {
+    long millis = time.getDateTime().getMillis();
+    long seconds = millis / 1000;
+    long millisOfSecond = millis % 1000;
+    if (millisOfSecond < 0) {
+      seconds -= 1;
+      millisOfSecond += 1000;
+    }
+    encoder.writeTimestamp(seconds, (int) (millisOfSecond * 1000000 + time.getNSec()));
   }
 
-  private void write(BufferPacker packer, RubyString str, CompiledOptions options) throws IOException {
+  private void write(Encoder encoder, RubyString str, CompiledOptions options) {
+    if (str.getEncoding() == ASCIIEncoding.INSTANCE) {
+      if (options.binary) {
+        encoder.writeBinary(str.getByteList());
+      } else {
+        encoder.writeRaw(str.getByteList());
+      }
+      return;
+    }
     if ((options.encoding != null) && (str.getEncoding() != options.encoding)) {
       Ruby runtime = str.getRuntime();
       str = (RubyString) str.encode(runtime.getCurrentContext(), runtime.getEncodingService().getEncoding(options.encoding));
     }
-    packer.write(str.getBytes());
+    if (options.binary) {
+      encoder.writeString(str.getByteList());
+    } else {
+      encoder.writeRaw(str.getByteList());
+    }
   }
 
-  private void write(BufferPacker packer, RubySymbol sym, CompiledOptions options) throws IOException {
-    write(packer, sym.asString(), options);
+  private void write(Encoder encoder, RubySymbol sym, CompiledOptions options) {
+    write(encoder, sym.asString(), options);
   }
 
-  private void write(BufferPacker packer, RubyArray array, CompiledOptions options) throws IOException {
+  private void write(Encoder encoder, RubyArray array, CompiledOptions options) {
     int count = array.size();
-    packer.writeArrayBegin(count);
+    encoder.writeArrayHeader(count);
     for (int i = 0; i < count; i++) {
-      write(packer, (RubyObject) array.entry(i), options);
+      write(encoder, array.eltInternal(i), options);
     }
-    packer.writeArrayEnd();
   }
 
-  private void write(BufferPacker packer, RubyHash hash, CompiledOptions options) throws IOException {
-    int count = hash.size();
-    packer.writeMapBegin(count);
-    RubyArray keys = hash.keys();
-    RubyArray values = hash.rb_values();
-    for (int i = 0; i < count; i++) {
-      write(packer, (RubyObject) keys.entry(i), options);
-      write(packer, (RubyObject) values.entry(i), options);
-    }
-    packer.writeMapEnd();
+  private void write(final Encoder encoder, RubyHash hash, final CompiledOptions options) {
+    encoder.writeMapHeader(hash.size());
+    hash.visitAll(new RubyHash.Visitor() {
+      public void visit(IRubyObject key, IRubyObject value) {
+        write(encoder, key, options);
+        write(encoder, value, options);
+      }
+    });
   }
 }
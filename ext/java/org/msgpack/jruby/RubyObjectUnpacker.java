@@ -2,162 +2,198 @@ package org.msgpack.jruby;
 
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
 
 import org.msgpack.MessagePack;
-import org.msgpack.MessageTypeException;
-import org.msgpack.unpacker.MessagePackBufferUnpacker;
-import org.msgpack.type.Value;
-import org.msgpack.type.ValueType;
-import org.msgpack.type.BooleanValue;
-import org.msgpack.type.IntegerValue;
-import org.msgpack.type.FloatValue;
-import org.msgpack.type.ArrayValue;
-import org.msgpack.type.MapValue;
-import org.msgpack.type.RawValue;
 
 import org.jruby.Ruby;
-import org.jruby.RubyObject;
-import org.jruby.RubyNil;
-import org.jruby.RubyBoolean;
-import org.jruby.RubyBignum;
 import org.jruby.RubyInteger;
-import org.jruby.RubyFixnum;
-import org.jruby.RubyFloat;
+import org.jruby.RubyNumeric;
 import org.jruby.RubyString;
 import org.jruby.RubySymbol;
-import org.jruby.RubyArray;
 import org.jruby.RubyHash;
+import org.jruby.RubyArray;
 import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.runtime.encoding.EncodingService;
 import org.jruby.runtime.ThreadContext;
+import org.jruby.util.ByteList;
 
 import org.jcodings.Encoding;
 
 
 public class RubyObjectUnpacker {
-  private final MessagePack msgPack;
+  public RubyObjectUnpacker() {
+  }
 
   public RubyObjectUnpacker(MessagePack msgPack) {
-    this.msgPack = msgPack;
+    this();
   }
 
   static class CompiledOptions {
+    /**
+     * The decoder recurses once per level of nesting, this keeps hostile
+     * input well within the stack of any thread.
+     */
+    public static final int DEFAULT_MAX_DEPTH = 512;
+
     public final boolean symbolizeKeys;
+    public final boolean freeze;
+    public final KeyCache keyCache;
     public final Encoding encoding;
+    public final Encoding internalEncoding;
+    public final IRubyObject rubyInternalEncoding;
+    public final boolean transcode;
+    public final boolean asciiPassthrough;
+    public final Encoding stringEncoding;
+    public final ExtensionRegistry extensions;
+    public final Metrics metrics;
+    public final FixnumCache fixnums;
+    public final int maxDepth;
+    public final int maxArraySize;
+    public final int maxMapSize;
+    public final int maxStringSize;
+    public final int maxBytes;
+    public final int maxBufferSize;
 
     public CompiledOptions(Ruby runtime) {
       this(runtime, null);
     }
 
     public CompiledOptions(Ruby runtime, RubyHash options) {
+      this(runtime, RuntimeState.get(runtime), options);
+    }
+
+    public CompiledOptions(Ruby runtime, RuntimeState state, RubyHash options) {
       EncodingService encodingService = runtime.getEncodingService();
       Encoding externalEncoding = null;
+      int keyCacheSize = 0;
       if (options == null) {
         symbolizeKeys = false;
+        freeze = false;
+        maxDepth = DEFAULT_MAX_DEPTH;
+        maxArraySize = maxMapSize = maxStringSize = maxBytes = maxBufferSize = Integer.MAX_VALUE;
       } else {
         ThreadContext ctx = runtime.getCurrentContext();
         RubySymbol key = runtime.newSymbol("symbolize_keys");
         IRubyObject value = options.fastARef(key);
         symbolizeKeys = value != null && value.isTrue();
+        IRubyObject rubyFreeze = options.fastARef(runtime.newSymbol("freeze"));
+        freeze = rubyFreeze != null && rubyFreeze.isTrue();
+        IRubyObject rubyKeyCache = options.fastARef(runtime.newSymbol("key_cache"));
+        if (rubyKeyCache == null) {
+          keyCacheSize = freeze ? KeyCache.DEFAULT_SIZE : 0;
+        } else if (rubyKeyCache instanceof RubyInteger) {
+          keyCacheSize = RubyNumeric.fix2int(rubyKeyCache);
+        } else if (rubyKeyCache.isTrue()) {
+          keyCacheSize = KeyCache.DEFAULT_SIZE;
+        }
         IRubyObject rubyEncoding = options.fastARef(runtime.newSymbol("encoding"));
         externalEncoding = encodingService.getEncodingFromObject(rubyEncoding);
+        maxDepth = limit(runtime, options, "max_depth", DEFAULT_MAX_DEPTH);
+        maxArraySize = limit(runtime, options, "max_array_size", Integer.MAX_VALUE);
+        maxMapSize = limit(runtime, options, "max_map_size", Integer.MAX_VALUE);
+        maxStringSize = limit(runtime, options, "max_string_size", Integer.MAX_VALUE);
+        maxBytes = limit(runtime, options, "max_bytes", Integer.MAX_VALUE);
+        maxBufferSize = limit(runtime, options, "max_buffer_size", Integer.MAX_VALUE);
       }
+      keyCache = (keyCacheSize > 0) ? state.keyCache(keyCacheSize) : null;
+      extensions = state.extensions;
+      metrics = state.metrics;
+      fixnums = state.fixnumCache(runtime);
       encoding = (externalEncoding != null) ? externalEncoding : runtime.getDefaultExternalEncoding();
+      internalEncoding = runtime.getDefaultInternalEncoding();
+      transcode = internalEncoding != null && internalEncoding != encoding;
+      rubyInternalEncoding = transcode ? encodingService.getEncoding(internalEncoding) : null;
+      asciiPassthrough = transcode && encoding.isAsciiCompatible() && internalEncoding.isAsciiCompatible();
+      stringEncoding = transcode ? internalEncoding : encoding;
     }
-  }
-
-  public IRubyObject unpack(RubyString str, RubyHash options) throws IOException {
-    return unpack(str.getRuntime(), str.getBytes(), new CompiledOptions(str.getRuntime(), options));
-  }
 
-  public IRubyObject unpack(Ruby runtime, byte[] data) throws IOException {
-    return unpack(runtime, data, new CompiledOptions(runtime, null));
-  }
+    private static int limit(Ruby runtime, RubyHash options, String name, int defaultLimit) {
+      IRubyObject value = options.fastARef(runtime.newSymbol(name));
+      if (value == null || value.isNil()) {
+        return defaultLimit;
+      }
+      long limit = RubyNumeric.num2long(value);
+      if (limit < 0) {
+        throw runtime.newArgumentError(String.format("%s must not be negative: %d", name, limit));
+      }
+      return (int) Math.min(limit, Integer.MAX_VALUE);
+    }
 
-  public IRubyObject unpack(Ruby runtime, byte[] data, RubyHash options) throws IOException {
-    return unpack(runtime, data, new CompiledOptions(runtime, options));
+    public void checkBytes(Ruby runtime, long size) {
+      if (size > maxBytes) {
+        throw Decoder.unpackError(runtime, String.format("Data size %d exceeds the limit of %d bytes", size, maxBytes));
+      }
+    }
   }
 
-  IRubyObject unpack(Ruby runtime, byte[] data, CompiledOptions options) throws IOException {
-    MessagePackBufferUnpacker unpacker = new MessagePackBufferUnpacker(msgPack);
-    unpacker.wrap(data);
-    return valueToRubyObject(runtime, unpacker.readValue(), options);
+  public IRubyObject unpack(RubyString str, RubyHash options) throws IOException {
+    return unpack(str, new CompiledOptions(str.getRuntime(), options));
   }
 
-  IRubyObject valueToRubyObject(Ruby runtime, Value value, RubyHash options) throws IOException {
-    return valueToRubyObject(runtime, value, new CompiledOptions(runtime, options));
+  IRubyObject unpack(RubyString str, CompiledOptions options) throws IOException {
+    ByteList bytes = str.getByteList();
+    options.checkBytes(str.getRuntime(), bytes.length());
+    ByteBuffer buffer = ByteBuffer.wrap(bytes.unsafeBytes(), bytes.begin(), bytes.length());
+    Decoder decoder = new Decoder(str.getRuntime(), options, buffer);
+    decoder.shareInput(str);
+    return unpack(str.getRuntime(), decoder);
   }
 
-  IRubyObject valueToRubyObject(Ruby runtime, Value value, CompiledOptions options) {
-    switch (value.getType()) {
-    case NIL:
-      return runtime.getNil();
-    case BOOLEAN:
-      return convert(runtime, value.asBooleanValue());
-    case INTEGER:
-      return convert(runtime, value.asIntegerValue());
-    case FLOAT:
-      return convert(runtime, value.asFloatValue());
-    case ARRAY:
-      return convert(runtime, value.asArrayValue(), options);
-    case MAP:
-      return convert(runtime, value.asMapValue(), options);
-    case RAW:
-      return convert(runtime, value.asRawValue(), options);
-    default:
-      throw runtime.newArgumentError(String.format("Unexpected value: %s", value.toString()));
+  /**
+   * Decodes a map into the given hash, or an array into the given array,
+   * after clearing it.
+   */
+  IRubyObject unpackInto(IRubyObject target, RubyString str, CompiledOptions options) throws IOException {
+    Ruby runtime = str.getRuntime();
+    ByteList bytes = str.getByteList();
+    options.checkBytes(runtime, bytes.length());
+    ByteBuffer buffer = ByteBuffer.wrap(bytes.unsafeBytes(), bytes.begin(), bytes.length());
+    Decoder decoder = new Decoder(runtime, options, buffer);
+    decoder.shareInput(str);
+    try {
+      if (target instanceof RubyHash) {
+        if (!decoder.isNextMap()) {
+          throw Decoder.unpackError(runtime, "Expected a map to unpack into a Hash");
+        }
+        decoder.reuse((RubyHash) target, null);
+      } else if (target instanceof RubyArray) {
+        if (!decoder.isNextArray()) {
+          throw Decoder.unpackError(runtime, "Expected an array to unpack into an Array");
+        }
+        decoder.reuse(null, (RubyArray) target);
+      } else {
+        throw runtime.newTypeError(String.format("Can only unpack into a Hash or an Array, not %s", target.getMetaClass().getName()));
+      }
+    } catch (BufferUnderflowException bue) {
+      throw MessagePackLibrary.LazyView.prematureEnd(runtime);
     }
+    return unpack(runtime, decoder);
   }
 
-  private IRubyObject convert(Ruby runtime, BooleanValue value) {
-    return RubyBoolean.newBoolean(runtime, value.asBooleanValue().getBoolean());
+  public IRubyObject unpack(Ruby runtime, byte[] data) throws IOException {
+    return unpack(runtime, data, new CompiledOptions(runtime, null));
   }
 
-  private IRubyObject convert(Ruby runtime, IntegerValue value) {
-    // TODO: is there any way of checking for bignums up front?
-    IntegerValue iv = value.asIntegerValue();
-    try {
-      return RubyFixnum.newFixnum(runtime, iv.getLong());
-    } catch (MessageTypeException mte) {
-      return RubyBignum.newBignum(runtime, iv.getBigInteger());
-    }
+  public IRubyObject unpack(Ruby runtime, byte[] data, RubyHash options) throws IOException {
+    return unpack(runtime, data, new CompiledOptions(runtime, options));
   }
 
-  private IRubyObject convert(Ruby runtime, FloatValue value) {
-    return RubyFloat.newFloat(runtime, value.asFloatValue().getDouble());
+  IRubyObject unpack(Ruby runtime, byte[] data, CompiledOptions options) throws IOException {
+    options.checkBytes(runtime, data.length);
+    return unpack(runtime, ByteBuffer.wrap(data), options);
   }
 
-  private IRubyObject convert(Ruby runtime, ArrayValue value, CompiledOptions options) {
-    Value[] elements = value.asArrayValue().getElementArray();
-    int elementCount = elements.length;
-    IRubyObject[] rubyObjects = new IRubyObject[elementCount];
-    for (int i = 0; i < elementCount; i++) {
-      rubyObjects[i] = valueToRubyObject(runtime, elements[i], options);
-    }
-    return RubyArray.newArray(runtime, rubyObjects);
+  IRubyObject unpack(Ruby runtime, ByteBuffer buffer, CompiledOptions options) throws IOException {
+    return unpack(runtime, new Decoder(runtime, options, buffer));
   }
 
-  private IRubyObject convert(Ruby runtime, MapValue value, CompiledOptions options) {
-    Value[] keysAndValues = value.asMapValue().getKeyValueArray();
-    int kvCount = keysAndValues.length;
-    RubyHash hash = RubyHash.newHash(runtime);
-    for (int i = 0; i < kvCount; i += 2) {
-      Value k = keysAndValues[i];
-      Value v = keysAndValues[i + 1];
-      IRubyObject kk = valueToRubyObject(runtime, k, options);
-      IRubyObject vv = valueToRubyObject(runtime, v, options);
-      if (options.symbolizeKeys) {
-        kk = runtime.newSymbol(kk.asString().getByteList());
-      }
-      hash.put(kk, vv);
+  private IRubyObject unpack(Ruby runtime, Decoder decoder) {
+    try {
+      return decoder.nextValue();
+    } catch (BufferUnderflowException bue) {
+      throw MessagePackLibrary.LazyView.prematureEnd(runtime);
     }
-    return hash;
-  }
-
-  private IRubyObject convert(Ruby runtime, RawValue value, CompiledOptions options) {
-    RubyString string = RubyString.newStringNoCopy(runtime, value.getByteArray());
-    string.setEncoding(options.encoding);
-    string.callMethod(runtime.getCurrentContext(), "encode!");
-    return string;
   }
 }
@@ -0,0 +1,138 @@
+package org.msgpack.jruby;
+
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jruby.Finalizable;
+import org.jruby.Ruby;
+import org.jruby.RubyModule;
+
+
+/**
+ * State that belongs to one JRuby runtime, kept as an internal variable of
+ * its MessagePack module. Everything in here is either immutable or safe to
+ * use from many threads at once, so packing and unpacking never take a lock.
+ *
+ * The internal variable is read instead of the module's data struct because
+ * dataGetStruct is synchronized on the module.
+ */
+class RuntimeState {
+  private static final String VARIABLE_NAME = "msgpack_runtime_state";
+
+  public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+  public final RubyObjectPacker packer;
+  public final RubyObjectUnpacker unpacker;
+  public final ExtensionRegistry extensions;
+  public final Metrics metrics;
+  private final ConcurrentMap<Integer, KeyCache> keyCaches;
+  private volatile ExecutorService executor;
+  private Finalizable executorShutdown;
+  private volatile FixnumCache fixnums;
+
+  public RuntimeState() {
+    this.packer = new RubyObjectPacker();
+    this.unpacker = new RubyObjectUnpacker();
+    this.extensions = new ExtensionRegistry();
+    this.metrics = new Metrics();
+    this.keyCaches = new ConcurrentHashMap<Integer, KeyCache>();
+  }
+
+  public void install(RubyModule msgpackModule) {
+    msgpackModule.getInternalVariables().setInternalVariable(VARIABLE_NAME, this);
+  }
+
+  public static RuntimeState get(Ruby runtime) {
+    return get(runtime.getModule("MessagePack"));
+  }
+
+  public static RuntimeState get(RubyModule msgpackModule) {
+    return (RuntimeState) msgpackModule.getInternalVariables().getInternalVariable(VARIABLE_NAME);
+  }
+
+  public KeyCache keyCache(int size) {
+    KeyCache cache = keyCaches.get(size);
+    if (cache == null) {
+      KeyCache newCache = new KeyCache(size);
+      cache = keyCaches.putIfAbsent(size, newCache);
+      if (cache == null) {
+        cache = newCache;
+      }
+    }
+    return cache;
+  }
+
+  public FixnumCache fixnumCache(Ruby runtime) {
+    FixnumCache cache = fixnums;
+    if (cache == null) {
+      synchronized (this) {
+        cache = fixnums;
+        if (cache == null) {
+          cache = new FixnumCache(runtime);
+          fixnums = cache;
+        }
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * The daemon threads that MessagePack.unpack_batch decodes on and that
+   * compressing packers compress blocks on, started the first time they
+   * are needed and shut down when the runtime is torn down.
+   */
+  public ExecutorService executor(Ruby runtime) {
+    ExecutorService e = executor;
+    if (e == null) {
+      synchronized (this) {
+        e = executor;
+        if (e == null) {
+          e = Executors.newFixedThreadPool(DEFAULT_PARALLELISM, new DaemonThreadFactory(runtime.getRuntimeNumber()));
+          executorShutdown = new ExecutorShutdown(e);
+          runtime.addInternalFinalizer(executorShutdown);
+          executor = e;
+        }
+      }
+    }
+    return e;
+  }
+
+  private static class DaemonThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+    private final int runtimeNumber;
+
+    public DaemonThreadFactory(int runtimeNumber) {
+      this.runtimeNumber = runtimeNumber;
+    }
+
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "msgpack-worker-" + runtimeNumber + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+  /**
+   * Stops the threads of a runtime that is being torn down, so that they
+   * don't keep it and its class loader alive. The runtime only holds on to
+   * its internal finalizers weakly, and the JVM calls #finalize too when
+   * this is collected, so the state keeps a reference to it.
+   */
+  private static class ExecutorShutdown implements Finalizable {
+    private final ExecutorService executor;
+
+    public ExecutorShutdown(ExecutorService executor) {
+      this.executor = executor;
+    }
+
+    @SuppressWarnings("deprecation")
+    public void finalize() {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package org.msgpack.jruby;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyIO;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyString;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+import org.jruby.util.IOInputStream;
+
+
+/**
+ * Reads the stream of MessagePack::Unpacker into a reusable buffer, so that
+ * the IO is read in large blocks instead of once per value.
+ *
+ * IO and File objects are read through the InputStream of their underlying
+ * stream, which goes through the same buffering as Ruby level reads. The
+ * contents of a StringIO are decoded in place from its current position.
+ * Any other object is read by calling #read with the free space in the
+ * buffer.
+ *
+ * A file can also be memory mapped, in which case the buffer is a window
+ * of the file that is moved forward instead of refilled. Windows are
+ * limited in size since a single mapping can't be larger than 2 GB.
+ *
+ * The buffer (or window) grows when a single object does not fit in it.
+ *
+ * A stream of deflate blocks written by a compressing Packer is inflated
+ * into the buffer as it is read, from any kind of IO.
+ */
+class StreamBuffer {
+  public static final int DEFAULT_SIZE = 64 * 1024;
+  public static final int DEFAULT_WINDOW_SIZE = 256 * 1024 * 1024;
+
+  private final IRubyObject io;
+  private final InputStream in;
+  private final FileChannel channel;
+  private final int maxSize;
+  private ByteBuffer buffer;
+  private boolean eof;
+  private long windowStart;
+  private int windowSize;
+
+  private StreamBuffer(IRubyObject io, InputStream in, ByteBuffer buffer, boolean eof, int maxSize) {
+    this.io = io;
+    this.in = in;
+    this.channel = null;
+    this.maxSize = maxSize;
+    this.buffer = buffer;
+    this.eof = eof;
+  }
+
+  private StreamBuffer(FileChannel channel, int windowSize) throws IOException {
+    this.io = null;
+    this.in = null;
+    this.channel = channel;
+    this.maxSize = Integer.MAX_VALUE;
+    this.windowSize = windowSize;
+    map(0);
+  }
+
+  public static StreamBuffer forIO(ThreadContext ctx, IRubyObject io, int size, int maxSize) {
+    ByteBuffer buffer = ByteBuffer.allocate(Math.max(size, 16));
+    buffer.flip();
+    RubyClass stringio = ctx.getRuntime().getClass("StringIO");
+    if (stringio != null && stringio.isInstance(io)) {
+      RubyString str = io.callMethod(ctx, "string").convertToString();
+      int pos = RubyNumeric.fix2int(io.callMethod(ctx, "pos"));
+      str.setByteListShared();
+      ByteList bytes = str.getByteList();
+      pos = Math.min(pos, bytes.length());
+      return new StreamBuffer(io, null, ByteBuffer.wrap(bytes.unsafeBytes(), bytes.begin() + pos, bytes.length() - pos), true, maxSize);
+    } else if (io instanceof RubyIO) {
+      return new StreamBuffer(io, ((RubyIO) io).getInStream(), buffer, false, maxSize);
+    } else {
+      return new StreamBuffer(io, null, buffer, false, maxSize);
+    }
+  }
+
+  public static StreamBuffer forCompressedIO(ThreadContext ctx, IRubyObject io, int size, int maxSize) {
+    ByteBuffer buffer = ByteBuffer.allocate(Math.max(size, 16));
+    buffer.flip();
+    InputStream in = (io instanceof RubyIO) ? ((RubyIO) io).getInStream() : new IOInputStream(io);
+    return new StreamBuffer(io, new BlockInflaterInputStream(ctx.getRuntime(), in), buffer, false, maxSize);
+  }
+
+  public static StreamBuffer forFile(String path, int windowSize) throws IOException {
+    FileChannel channel = new RandomAccessFile(path, "r").getChannel();
+    try {
+      return new StreamBuffer(channel, Math.max(windowSize, 16));
+    } catch (IOException ioe) {
+      channel.close();
+      throw ioe;
+    }
+  }
+
+  public ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  public boolean isMapped() {
+    return channel != null;
+  }
+
+  /**
+   * The offset in the file of the next unread byte.
+   */
+  public long position() {
+    return windowStart + buffer.position();
+  }
+
+  public void seek(long offset) throws IOException {
+    if (offset >= windowStart && offset <= windowStart + buffer.limit()) {
+      buffer.position((int) (offset - windowStart));
+    } else {
+      map(offset);
+    }
+  }
+
+  public void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+    } else if (in instanceof BlockInflaterInputStream) {
+      in.close();
+    }
+  }
+
+  private void map(long offset) throws IOException {
+    long fileSize = channel.size();
+    if (offset < 0 || offset > fileSize) {
+      throw new IOException(String.format("Offset out of range: %d", offset));
+    }
+    long size = Math.min(windowSize, fileSize - offset);
+    buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+    windowStart = offset;
+    eof = offset + size >= fileSize;
+  }
+
+  /**
+   * Moves the unread bytes to the start of the buffer and reads more after
+   * them. Returns false when the end of the stream has been reached.
+   */
+  public boolean fill(ThreadContext ctx) throws IOException {
+    if (eof) {
+      return false;
+    }
+    if (channel != null) {
+      if (buffer.position() == 0) {
+        windowSize = (int) Math.min(2L * windowSize, Integer.MAX_VALUE);
+      }
+      map(position());
+      return true;
+    }
+    if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+      if (buffer.capacity() >= maxSize) {
+        throw Decoder.unpackError(ctx.getRuntime(), String.format("Buffered data exceeds the limit of %d bytes", maxSize));
+      }
+      ByteBuffer larger = ByteBuffer.allocate((int) Math.min(2L * buffer.capacity(), maxSize));
+      larger.put(buffer);
+      buffer = larger;
+    } else {
+      buffer.compact();
+    }
+    int n = (in != null) ? readStream() : readIO(ctx);
+    buffer.flip();
+    if (n < 0) {
+      eof = true;
+      return false;
+    }
+    return true;
+  }
+
+  private int readStream() throws IOException {
+    int n = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    if (n > 0) {
+      buffer.position(buffer.position() + n);
+    }
+    return n;
+  }
+
+  private int readIO(ThreadContext ctx) {
+    Ruby runtime = ctx.getRuntime();
+    IRubyObject chunk = io.callMethod(ctx, "read", runtime.newFixnum(buffer.remaining()));
+    if (chunk.isNil()) {
+      return -1;
+    }
+    ByteList bytes = chunk.convertToString().getByteList();
+    int n = Math.min(bytes.length(), buffer.remaining());
+    buffer.put(bytes.unsafeBytes(), bytes.begin(), n);
+    return n;
+  }
+}
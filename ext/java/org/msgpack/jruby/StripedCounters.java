@@ -0,0 +1,79 @@
+package org.msgpack.jruby;
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A fixed number of counters that many threads add to at once. Each thread
+ * adds to its own stripe of the counters, picked by its id, and the stripes
+ * are padded apart so that threads on different stripes don't share cache
+ * lines. Reading a counter sums its stripes, so reads are slower than
+ * writes and not atomic across counters.
+ */
+class StripedCounters {
+  private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+  private static final int LINE = 8;
+
+  private final int size;
+  private final int width;
+  private final AtomicLongArray cells;
+
+  public StripedCounters(int size) {
+    this.size = size;
+    this.width = ((size + LINE - 1) / LINE + 1) * LINE;
+    this.cells = new AtomicLongArray(STRIPES * width);
+  }
+
+  private static int stripes(int processors) {
+    int stripes = 1;
+    while (stripes < 2 * processors && stripes < 64) {
+      stripes <<= 1;
+    }
+    return stripes;
+  }
+
+  private int offset() {
+    long id = Thread.currentThread().getId();
+    return (int) ((id * 0x9e3779b97f4a7c15L) >>> 58) % STRIPES * width;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void add(int counter, long n) {
+    cells.addAndGet(offset() + counter, n);
+  }
+
+  public void add(long[] counts) {
+    int offset = offset();
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] != 0) {
+        cells.addAndGet(offset + i, counts[i]);
+      }
+    }
+  }
+
+  public long get(int counter) {
+    long sum = 0;
+    for (int offset = 0; offset < cells.length(); offset += width) {
+      sum += cells.get(offset + counter);
+    }
+    return sum;
+  }
+
+  public long[] toArray() {
+    long[] sums = new long[size];
+    for (int i = 0; i < size; i++) {
+      sums[i] = get(i);
+    }
+    return sums;
+  }
+
+  public void reset() {
+    for (int i = 0; i < cells.length(); i++) {
+      cells.set(i, 0);
+    }
+  }
+}
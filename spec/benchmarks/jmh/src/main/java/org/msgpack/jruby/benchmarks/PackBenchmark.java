@@ -0,0 +1,39 @@
+package org.msgpack.jruby.benchmarks;
+
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.msgpack.jruby.RubyObjectPacker;
+
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PackBenchmark {
+  private RubyObjectPacker packer;
+
+  @Setup
+  public void setUp() {
+    packer = new RubyObjectPacker(null);
+  }
+
+  @Benchmark
+  public byte[] packRaw(Payload payload) throws IOException {
+    return packer.packRaw(payload.runtime, payload.object, payload.options);
+  }
+}
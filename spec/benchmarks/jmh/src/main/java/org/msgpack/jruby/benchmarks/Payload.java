@@ -0,0 +1,81 @@
+package org.msgpack.jruby.benchmarks;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import org.jruby.RubyString;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.msgpack.jruby.MessagePackLibrary;
+import org.msgpack.jruby.RubyObjectPacker;
+
+
+/**
+ * An embedded JRuby runtime with the extension loaded, and one payload
+ * shape built in it, both as a Ruby object and as its packed bytes.
+ */
+@State(Scope.Benchmark)
+public class Payload {
+  public enum Shape {
+    WIDE_MAP("Hash[(0...1000).map { |i| [\"key#{i}\", i] }]"),
+    DEEP_NESTING("(0...100).inject('leaf') { |acc, i| {'level' => i, 'child' => [acc, i * 0.5]} }"),
+    LARGE_BINARY("{'name' => 'blob', 'data' => Random.new(1).bytes(1 << 20)}"),
+    INTEGER_ARRAY("Array.new(10_000) { |i| (i * 2654435761) % (2**40) - 2**39 }"),
+    SMALL_INTEGER_ARRAY("Array.new(10_000) { |i| (i * 7919) % 4096 }"),
+    UNSIGNED_ID_ARRAY("Array.new(10_000) { |i| 2**64 - 1 - i * 2654435761 }"),
+    STRING_RECORDS("Array.new(1000) { |i| {'id' => i, 'name' => \"user #{i}\", 'email' => \"user#{i}@example.com\", 'tags' => %w[alpha beta gamma], 'bio' => 'lorem ipsum ' * 8} }");
+
+    final String expression;
+
+    Shape(String expression) {
+      this.expression = expression;
+    }
+  }
+
+  private static final int CHUNK_SIZE = 8 * 1024;
+  private static final int STREAM_COPIES = 16;
+
+  @Param
+  public Shape shape;
+
+  public Ruby runtime;
+  public IRubyObject object;
+  public RubyHash options;
+  public byte[] packed;
+  public List<RubyString> chunks;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    runtime = Ruby.newInstance();
+    new MessagePackLibrary().load(runtime, false);
+    runtime.evalScriptlet("Encoding.default_external = Encoding::UTF_8");
+    object = runtime.evalScriptlet(shape.expression);
+    options = (RubyHash) runtime.evalScriptlet("{:encoding => Encoding::BINARY}");
+    packed = new RubyObjectPacker(null).packRaw(runtime, object, options);
+    chunks = new ArrayList<RubyString>();
+    byte[] stream = new byte[packed.length * STREAM_COPIES];
+    for (int i = 0; i < STREAM_COPIES; i++) {
+      System.arraycopy(packed, 0, stream, i * packed.length, packed.length);
+    }
+    for (int offset = 0; offset < stream.length; offset += CHUNK_SIZE) {
+      int length = Math.min(CHUNK_SIZE, stream.length - offset);
+      chunks.add(RubyString.newString(runtime, stream, offset, length));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    runtime.tearDown();
+  }
+}
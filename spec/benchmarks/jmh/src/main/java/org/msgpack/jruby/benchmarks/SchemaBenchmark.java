@@ -0,0 +1,74 @@
+package org.msgpack.jruby.benchmarks;
+
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.msgpack.jruby.MessagePackLibrary;
+import org.msgpack.jruby.RubyObjectPacker;
+
+
+/**
+ * Packs a fixed shape record with a compiled MessagePack::Schema, compared
+ * to packing the same hash with RubyObjectPacker.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchemaBenchmark {
+  private static final String RECORD = "{:id => 12345, :ts => 1388534400, :user => 'sue', :level => 'info', :host => 'web-12', :message => 'GET /index.html 200', :latency => 0.0123}";
+
+  private Ruby runtime;
+  private RubyObjectPacker packer;
+  private MessagePackLibrary.Schema schema;
+  private IRubyObject record;
+  private RubyHash options;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    runtime = Ruby.newInstance();
+    new MessagePackLibrary().load(runtime, false);
+    runtime.evalScriptlet("Encoding.default_external = Encoding::UTF_8");
+    packer = new RubyObjectPacker();
+    record = runtime.evalScriptlet(RECORD);
+    options = RubyHash.newHash(runtime);
+    schema = (MessagePackLibrary.Schema) runtime.evalScriptlet("MessagePack.compile_schema(" + RECORD + ".keys)");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    runtime.tearDown();
+  }
+
+  @Benchmark
+  public byte[] packHash() throws IOException {
+    return packer.packRaw(runtime, record, options);
+  }
+
+  @Benchmark
+  public IRubyObject packSchema() {
+    ThreadContext ctx = runtime.getCurrentContext();
+    return schema.pack(ctx, record);
+  }
+}
@@ -0,0 +1,60 @@
+package org.msgpack.jruby.benchmarks;
+
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.RubyClass;
+import org.jruby.RubyProc;
+import org.jruby.RubyString;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.msgpack.jruby.MessagePackLibrary;
+
+
+/**
+ * Feeds a stream of concatenated payloads to a MessagePack::Unpacker in
+ * 8 KB chunks and iterates over the decoded objects, the way a socket
+ * reader would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UnpackerBenchmark {
+  private RubyClass unpackerClass;
+  private Block block;
+
+  @Setup
+  public void setUp(Payload payload) {
+    unpackerClass = payload.runtime.getModule("MessagePack").getClass("Unpacker");
+    RubyProc proc = (RubyProc) payload.runtime.evalScriptlet("lambda { |obj| obj }");
+    block = proc.getBlock();
+  }
+
+  @Benchmark
+  public IRubyObject feedEach(Payload payload) throws IOException {
+    ThreadContext ctx = payload.runtime.getCurrentContext();
+    MessagePackLibrary.Unpacker unpacker = (MessagePackLibrary.Unpacker) unpackerClass.newInstance(ctx, Block.NULL_BLOCK);
+    for (RubyString chunk : payload.chunks) {
+      unpacker.feed(ctx, chunk);
+      unpacker.each(ctx, block);
+    }
+    return unpacker;
+  }
+}
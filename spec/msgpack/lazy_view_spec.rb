@@ -0,0 +1,116 @@
+# encoding: ascii-8bit
+
+require 'spec_helper'
+
+
+describe ::MessagePack::LazyView do
+  let :document do
+    {
+      'route' => 'orders.created',
+      'ts' => 1_388_534_400,
+      'payload' => {'items' => [{'sku' => 'x1', 'qty' => 2}, {'sku' => 'y2', 'qty' => 1}], 'blob' => 'z' * 1000},
+      3 => 'three'
+    }
+  end
+
+  let :packed do
+    MessagePack.pack(document)
+  end
+
+  subject do
+    MessagePack.unpack_lazy(packed)
+  end
+
+  it 'returns scalars as they are' do
+    MessagePack.unpack_lazy(MessagePack.pack('hello')).should == 'hello'
+    MessagePack.unpack_lazy(MessagePack.pack(42)).should == 42
+  end
+
+  describe '#[]' do
+    it 'looks up keys in maps' do
+      subject['route'].should == 'orders.created'
+      subject['ts'].should == 1_388_534_400
+      subject[3].should == 'three'
+    end
+
+    it 'returns nil for missing keys' do
+      subject['nope'].should be_nil
+      subject[:route].should be_nil
+    end
+
+    it 'returns views of nested maps and arrays' do
+      subject['payload'].should be_a(described_class)
+      subject['payload']['items'].should be_array
+      subject['payload']['items'][1]['sku'].should == 'y2'
+      subject['payload']['items'][-2]['qty'].should == 2
+      subject['payload']['items'][2].should be_nil
+    end
+
+    it 'finds symbols when keys are symbolized' do
+      view = MessagePack.unpack_lazy(packed, :symbolize_keys => true)
+      view[:route].should == 'orders.created'
+      view['route'].should be_nil
+    end
+  end
+
+  describe '#dig' do
+    it 'follows a path of keys and indexes' do
+      subject.dig('payload', 'items', 0, 'sku').should == 'x1'
+    end
+
+    it 'returns nil when a step is missing' do
+      subject.dig('missing', 'items').should be_nil
+    end
+
+    it 'raises an error when a step is not a map or array' do
+      expect { subject.dig('route', 'x') }.to raise_error(TypeError)
+    end
+  end
+
+  describe '#size/#key?' do
+    it 'returns the number of entries' do
+      subject.size.should == 4
+      subject['payload']['items'].size.should == 2
+    end
+
+    it 'knows which keys a map has' do
+      subject.key?('ts').should == true
+      subject.key?('nope').should == false
+    end
+  end
+
+  describe '#each' do
+    it 'yields key and value pairs of maps' do
+      subject.map { |k, v| k }.should == ['route', 'ts', 'payload', 3]
+    end
+
+    it 'yields the elements of arrays' do
+      subject['payload']['items'].map { |item| item['qty'] }.should == [2, 1]
+    end
+
+    it 'can be nested' do
+      subject.each do |k, v|
+        v['items'].each { |item| item['sku'] } if k == 'payload'
+      end
+      subject.to_a.last.should == [3, 'three']
+    end
+  end
+
+  describe '#materialize' do
+    it 'decodes the whole structure' do
+      subject.materialize.should == document
+      subject['payload'].materialize.should == document['payload']
+    end
+  end
+
+  it 'raises an error when the data is truncated' do
+    view = MessagePack.unpack_lazy(packed[0, 30])
+    expect { view['payload'] }.to raise_error(MessagePack::UnpackError)
+  end
+
+  it 'is not affected by changes to the unpacked string' do
+    view = MessagePack.unpack_lazy(packed)
+    packed.replace(MessagePack.pack(:other => 1))
+    view['route'].should == 'orders.created'
+  end
+end
@@ -0,0 +1,173 @@
+# encoding: ascii-8bit
+
+require 'stringio'
+require 'tempfile'
+require 'spec_helper'
+
+
+describe ::MessagePack::Packer do
+  subject do
+    described_class.new
+  end
+
+  describe '#write/#to_s' do
+    it 'buffers the packed objects' do
+      subject.write(:foo => 'bar')
+      subject.write([1, 2, 3])
+      subject.to_s.should == MessagePack.pack(:foo => 'bar') + MessagePack.pack([1, 2, 3])
+    end
+
+    it 'returns itself so that calls can be chained' do
+      subject.write(1).write(2).to_s.should == "\x01\x02"
+    end
+
+    it 'raises an error for unsupported types' do
+      expect { subject.write(self) }.to raise_error(ArgumentError, /^Cannot pack type:/)
+    end
+  end
+
+  describe '#write_array_header/#write_map_header' do
+    it 'writes headers that can be followed by the elements' do
+      subject.write_array_header(3)
+      3.times { |i| subject.write(i) }
+      subject.write_map_header(1)
+      subject.write('x').write('y')
+      unpacker = MessagePack::Unpacker.new
+      unpacker.feed(subject.to_s)
+      unpacker.each.to_a.should == [[0, 1, 2], {'x' => 'y'}]
+    end
+
+    it 'writes wide headers' do
+      subject.write_array_header(70_000).to_s.should == "\xDD\x00\x01\x11\x70"
+    end
+
+    it 'raises an error for negative sizes' do
+      expect { subject.write_array_header(-1) }.to raise_error(ArgumentError)
+      expect { subject.write_map_header(-1) }.to raise_error(ArgumentError)
+      subject.should be_empty
+    end
+  end
+
+  describe '#reset' do
+    it 'empties the buffer' do
+      subject.write('hello world')
+      subject.reset
+      subject.should be_empty
+      subject.to_s.should == ''
+    end
+  end
+
+  context 'with an IO' do
+    let :io do
+      StringIO.new
+    end
+
+    it 'writes the buffer to the IO on #flush' do
+      packer = described_class.new(io)
+      packer.write('hello')
+      io.string.should == ''
+      packer.flush
+      io.string.should == "\xA5hello"
+      packer.should be_empty
+    end
+
+    it 'flushes when the buffer reaches the watermark' do
+      packer = described_class.new(io, :watermark => 10)
+      packer.write('abc')
+      io.string.should == ''
+      packer.write('defghi')
+      io.string.should == "\xA3abc\xA6defghi"
+      packer.should be_empty
+    end
+
+    it 'streams a large array to a file' do
+      file = Tempfile.new('msgpack')
+      packer = described_class.new(file, :watermark => 1024)
+      packer.write_array_header(10_000)
+      10_000.times { |i| packer.write('item' => i) }
+      packer.flush
+      file.rewind
+      MessagePack.unpack(file.read).should == (0...10_000).map { |i| {'item' => i} }
+    end
+  end
+
+  context 'with compression' do
+    let :io do
+      StringIO.new
+    end
+
+    let :records do
+      (0...20_000).map { |i| {'id' => i, 'name' => "user #{i % 100}", 'tags' => %w[a b c]} }
+    end
+
+    def read_all(io, options={})
+      io.rewind
+      values = []
+      MessagePack::Unpacker.new(io, options.merge(:compression => :deflate)).each { |v| values << v }
+      values
+    end
+
+    it 'writes deflate blocks that a compressing unpacker reads back' do
+      packer = described_class.new(io, :compression => :deflate)
+      records.each { |r| packer.write(r) }
+      packer.flush
+      io.string.bytesize.should < MessagePack.pack(records).bytesize / 3
+      read_all(io).should == records
+    end
+
+    it 'writes one block per watermark and keeps them in order when compressing in parallel' do
+      packer = described_class.new(io, :compression => :deflate, :watermark => 4096, :parallelism => 4)
+      packer.write_array_header(records.size)
+      records.each { |r| packer.write(r) }
+      packer.flush
+      read_all(io, :buffer_size => 1024).should == [records]
+    end
+
+    it 'compresses each flush as a block of its own' do
+      packer = described_class.new(io, :compression => :deflate, :parallelism => 1)
+      packer.write('hello')
+      packer.flush
+      size = io.string.bytesize
+      packer.write('world')
+      packer.flush
+      io.string.bytesize.should > size
+      read_all(io).should == %w[hello world]
+    end
+
+    it 'reads compressed files through the Java stream' do
+      file = Tempfile.new('msgpack')
+      packer = described_class.new(file, :compression => :deflate, :compression_level => 9)
+      records.each { |r| packer.write(r) }
+      packer.flush
+      file.rewind
+      values = []
+      MessagePack::Unpacker.new(File.open(file.path), :compression => :deflate).each { |v| values << v }
+      values.should == records
+    end
+
+    it 'raises an error when a block is corrupt' do
+      packer = described_class.new(io, :compression => :deflate)
+      packer.write('hello' * 100)
+      packer.flush
+      io.string.setbyte(10, io.string.getbyte(10) ^ 0xff)
+      expect { read_all(io) }.to raise_error(MessagePack::UnpackError)
+    end
+
+    it 'raises an error when a block header does not match its data' do
+      packer = described_class.new(io, :compression => :deflate)
+      packer.write('hello')
+      packer.flush
+      io.string.setbyte(7, io.string.getbyte(7) + 1)
+      expect { read_all(io) }.to raise_error(MessagePack::UnpackError)
+    end
+
+    it 'needs an IO' do
+      expect { described_class.new(:compression => :deflate) }.to raise_error(ArgumentError)
+    end
+
+    it 'only supports deflate' do
+      expect { described_class.new(io, :compression => :lz4) }.to raise_error(ArgumentError)
+      expect { MessagePack::Unpacker.new(io, :compression => :lz4) }.to raise_error(ArgumentError)
+    end
+  end
+end
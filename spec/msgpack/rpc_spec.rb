@@ -0,0 +1,175 @@
+# encoding: ascii-8bit
+
+require 'spec_helper'
+require 'socket'
+
+
+describe ::MessagePack::RPC::Codec do
+  subject do
+    described_class.new
+  end
+
+  let :server do
+    described_class.new
+  end
+
+  def serve(server, data)
+    server.feed(data).each do |message|
+      if message[0] == MessagePack::RPC::REQUEST
+        _, msgid, method, params = message
+        if method == 'add'
+          server.respond(msgid, nil, params.reduce(:+))
+        else
+          server.respond(msgid, "no such method: #{method}", nil)
+        end
+      end
+    end
+  end
+
+  describe '#request' do
+    it 'frames requests as [0, msgid, method, params]' do
+      subject.request('add', [1, 2])
+      MessagePack.unpack(subject.take).should == [0, 0, 'add', [1, 2]]
+    end
+
+    it 'returns increasing msgids' do
+      subject.request('a', []).should == 0
+      subject.request('b', []).should == 1
+      subject.request('c', []).should == 2
+    end
+
+    it 'counts the requests that have not been answered' do
+      3.times { subject.request('add', [1]) }
+      subject.pending.should == 3
+    end
+  end
+
+  describe '#notify' do
+    it 'frames notifications as [2, method, params]' do
+      subject.notify('log', ['hello'])
+      MessagePack.unpack(subject.take).should == [2, 'log', ['hello']]
+    end
+  end
+
+  describe '#respond' do
+    it 'frames responses as [1, msgid, error, result]' do
+      subject.respond(7, nil, 'ok')
+      MessagePack.unpack(subject.take).should == [1, 7, nil, 'ok']
+    end
+  end
+
+  describe '#take' do
+    it 'returns all buffered messages and empties the buffer' do
+      subject.request('add', [1, 2])
+      subject.notify('log', [])
+      subject.size.should > 0
+      data = subject.take
+      subject.size.should == 0
+      subject.take.should == ''
+      unpacker = MessagePack::Unpacker.new
+      unpacker.feed(data)
+      messages = []
+      unpacker.each { |m| messages << m }
+      messages.should == [[0, 0, 'add', [1, 2]], [2, 'log', []]]
+    end
+  end
+
+  describe '#feed' do
+    it 'keeps responses until they are taken' do
+      id = subject.request('add', [1, 2])
+      serve(server, subject.take)
+      subject.feed(server.take).should == []
+      subject.response?(id).should == true
+      subject.pending.should == 0
+      subject.response(id).should == [nil, 3]
+      subject.response?(id).should == false
+      subject.response(id).should be_nil
+    end
+
+    it 'returns requests and notifications' do
+      subject.request('add', [1])
+      subject.notify('log', ['x'])
+      server.feed(subject.take).should == [[0, 0, 'add', [1]], [2, 'log', ['x']]]
+    end
+
+    it 'demultiplexes pipelined responses that arrive in pieces' do
+      ids = (1..100).map { |i| subject.request('add', [i, i]) }
+      subject.request('nope', [])
+      serve(server, subject.take)
+      data = server.take
+      data.bytes.each_slice(7) { |slice| subject.feed(slice.pack('C*')) }
+      ids.each_with_index { |id, i| subject.response(id).should == [nil, 2 * (i + 1)] }
+      subject.response(100).should == ['no such method: nope', nil]
+      subject.pending.should == 0
+    end
+
+    it 'raises an error for messages that are not RPC messages' do
+      expect { subject.feed(MessagePack.pack([5, 1, 2, 3])) }.to raise_error(MessagePack::UnpackError)
+      expect { described_class.new.feed(MessagePack.pack('hello')) }.to raise_error(MessagePack::UnpackError)
+    end
+
+    it 'drops responses to msgids that are not pending' do
+      server.respond(7, nil, 1)
+      server.respond(8, nil, 2)
+      subject.feed(server.take).should == []
+      subject.response?(7).should == false
+      subject.response?(8).should == false
+    end
+
+    it 'returns the valid messages in a chunk before raising for an invalid one' do
+      data = MessagePack.pack([2, 'a', []]) + MessagePack.pack('hello') + MessagePack.pack([2, 'b', []])
+      subject.feed(data).should == [[2, 'a', []], [2, 'b', []]]
+      expect { subject.feed(MessagePack.pack([2, 'c', []])) }.to raise_error(MessagePack::UnpackError)
+      subject.feed('').should == [[2, 'c', []]]
+    end
+
+    it 'returns the messages before data that cannot be decoded before raising' do
+      subject.feed(MessagePack.pack([0, 1, 'get', ['a']]) + "\xc1").should == [[0, 1, 'get', ['a']]]
+      expect { subject.feed('') }.to raise_error(MessagePack::UnpackError)
+    end
+
+    it 'limits how much data it buffers' do
+      codec = described_class.new(:max_buffer_size => 4)
+      expect { codec.feed("\x94\x01\x00\xc0\xa5hello") }.to raise_error(MessagePack::UnpackError)
+    end
+  end
+
+  describe '#write_to' do
+    it 'writes pipelined requests over a pipe' do
+      reader, writer = IO.pipe
+      begin
+        10.times { |i| subject.request('add', [i, 1]) }
+        size = subject.write_to(writer)
+        writer.close
+        serve(server, reader.read)
+        size.should > 0
+        subject.feed(server.take)
+        (0...10).map { |id| subject.response(id) }.should == (0...10).map { |i| [nil, i + 1] }
+      ensure
+        reader.close
+        writer.close unless writer.closed?
+      end
+    end
+
+    it 'exchanges pipelined requests and responses over a loopback socket' do
+      listener = TCPServer.new('127.0.0.1', 0)
+      thread = Thread.new do
+        socket = listener.accept
+        codec = described_class.new
+        until socket.eof?
+          serve(codec, socket.readpartial(4096))
+          codec.write_to(socket)
+        end
+        socket.close
+      end
+      client = TCPSocket.new('127.0.0.1', listener.addr[1])
+      ids = (1..1000).map { |i| subject.request('add', [i, 1]) }
+      subject.write_to(client)
+      subject.feed(client.readpartial(4096)) until ids.all? { |id| subject.response?(id) }
+      client.close
+      thread.join
+      listener.close
+      ids.map { |id| subject.response(id)[1] }.should == (2..1001).to_a
+    end
+  end
+end
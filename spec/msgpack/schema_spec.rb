@@ -0,0 +1,138 @@
+# encoding: ascii-8bit
+
+require 'spec_helper'
+
+
+describe ::MessagePack::Schema do
+  SchemaEvent = Struct.new(:id, :ts, :user, :tags)
+
+  let :record do
+    {:id => 3, :ts => 1_388_534_400, :user => 'sue', :tags => %w[a b]}
+  end
+
+  describe 'with an array of keys' do
+    subject do
+      MessagePack.compile_schema([:id, :ts, :user, :tags])
+    end
+
+    it 'packs hashes the same way as MessagePack.pack' do
+      subject.pack(record).should == MessagePack.pack(record)
+    end
+
+    it 'writes the values in the order of the schema' do
+      reordered = {:user => 'sue', :tags => %w[a b], :ts => 1_388_534_400, :id => 3}
+      subject.pack(reordered).should == MessagePack.pack(record)
+    end
+
+    it 'falls back to packing hashes that do not match the schema as they are' do
+      other = {:id => 3, :name => 'x', :ts => 1, :user => 'y'}
+      subject.pack(other).should == MessagePack.pack(other)
+      subject.pack(:id => 1).should == MessagePack.pack(:id => 1)
+      subject.pack([1, 2]).should == MessagePack.pack([1, 2])
+    end
+
+    it 'unpacks to hashes with string keys' do
+      subject.unpack(subject.pack(record)).should == {'id' => 3, 'ts' => 1_388_534_400, 'user' => 'sue', 'tags' => %w[a b]}
+    end
+
+    it 'reuses the same frozen keys' do
+      a = subject.unpack(subject.pack(record))
+      b = subject.unpack(subject.pack(record))
+      a.keys.map(&:object_id).should == b.keys.map(&:object_id)
+      a.keys.each { |key| key.should be_frozen }
+    end
+
+    it 'unpacks keys that are not in the schema' do
+      subject.unpack(MessagePack.pack('id' => 1, 'other' => 2)).should == {'id' => 1, 'other' => 2}
+    end
+
+    it 'can symbolize keys' do
+      schema = MessagePack.compile_schema(%w[id ts user tags], :symbolize_keys => true)
+      schema.unpack(schema.pack('id' => 3, 'ts' => 1_388_534_400, 'user' => 'sue', 'tags' => %w[a b])).should == record
+    end
+
+    it 'raises an error when a key is not a string or symbol' do
+      expect { MessagePack.compile_schema([1, 2]) }.to raise_error(ArgumentError)
+    end
+
+    it 'returns its keys' do
+      subject.keys.should == [:id, :ts, :user, :tags]
+    end
+
+    it 'applies :max_bytes' do
+      schema = MessagePack.compile_schema([:id, :ts, :user, :tags], :max_bytes => 8)
+      expect { schema.unpack(schema.pack(record)) }.to raise_error(MessagePack::UnpackError)
+    end
+
+    context 'with stats' do
+      before do
+        MessagePack.enable_stats
+        MessagePack.reset_stats
+      end
+
+      after do
+        MessagePack.disable_stats
+      end
+
+      it 'records the same stats as MessagePack.pack and MessagePack.unpack' do
+        packed = subject.pack(record)
+        subject.unpack(packed)
+        schema_stats = MessagePack.stats
+        schema_stats[:values_unpacked].should == 1
+        MessagePack.reset_stats
+        MessagePack.unpack(MessagePack.pack(record))
+        stats = MessagePack.stats
+        [:values_packed, :bytes_packed, :values_unpacked, :bytes_unpacked, :objects_unpacked].each do |name|
+          schema_stats[name].should == stats[name]
+        end
+      end
+    end
+  end
+
+  describe 'with a Struct class' do
+    subject do
+      MessagePack.compile_schema(SchemaEvent)
+    end
+
+    let :event do
+      SchemaEvent.new(3, 1_388_534_400, 'sue', %w[a b])
+    end
+
+    it 'packs structs as maps' do
+      subject.pack(event).should == MessagePack.pack(record)
+    end
+
+    it 'packs instances of subclasses of the struct' do
+      subclass = Class.new(SchemaEvent)
+      subject.pack(subclass.new(3, 1_388_534_400, 'sue', %w[a b])).should == MessagePack.pack(record)
+    end
+
+    it 'unpacks maps into structs' do
+      subject.unpack(MessagePack.pack(record)).should == event
+    end
+
+    it 'unpacks maps with the keys in any order' do
+      subject.unpack(MessagePack.pack('user' => 'sue', 'tags' => %w[a b], 'id' => 3, 'ts' => 1_388_534_400)).should == event
+    end
+
+    it 'leaves missing members as nil and ignores unknown keys' do
+      subject.unpack(MessagePack.pack('id' => 3, 'extra' => [1, {'x' => 2}])).should == SchemaEvent.new(3)
+    end
+
+    it 'unpacks values that are not maps as they are' do
+      subject.unpack(MessagePack.pack([1, 2])).should == [1, 2]
+    end
+
+    it 'raises an error when the data is truncated' do
+      expect { subject.unpack(subject.pack(event)[0, 10]) }.to raise_error(MessagePack::UnpackError)
+    end
+
+    it 'returns its struct' do
+      subject.struct.should == SchemaEvent
+    end
+  end
+
+  it 'raises an error when given something other than an array or a Struct class' do
+    expect { MessagePack.compile_schema(String) }.to raise_error(TypeError)
+  end
+end
@@ -71,6 +71,10 @@ describe ::MessagePack::Unpacker do
       subject.execute_limit(buffer, buffer1.length, 3)
       subject.should_not be_finished
     end
+
+    it 'raises an error when the offset and limit are outside of the buffer' do
+      expect { subject.execute_limit(buffer, buffer.length - 1, 2) }.to raise_error(ArgumentError)
+    end
   end
   
   describe '#each' do
@@ -95,6 +99,42 @@ describe ::MessagePack::Unpacker do
       end
     end
     
+    context 'with :reuse => true' do
+      it 'yields the same hash for every map' do
+        subject.feed(buffer1 + buffer2 + buffer3)
+        objects = []
+        ids = []
+        subject.each(:reuse => true) do |obj|
+          objects << obj.dup
+          ids << obj.object_id
+        end
+        objects.should == [{'foo' => 'bar'}, {'hello' => {'world' => [1, 2, 3]}}, {'x' => 'y'}]
+        ids.uniq.size.should == 1
+      end
+
+      it 'yields the same array for every array, with the right size' do
+        objects = []
+        ids = []
+        subject.feed_each(MessagePack.pack([1, 2, 3]) + MessagePack.pack([4]) + MessagePack.pack([5, [6, 7]]), :reuse => true) do |obj|
+          objects << obj.dup
+          ids << obj.object_id
+        end
+        objects.should == [[1, 2, 3], [4], [5, [6, 7]]]
+        ids.uniq.size.should == 1
+      end
+
+      it 'yields other values as usual' do
+        objects = []
+        subject.feed_each(MessagePack.pack('foo') + MessagePack.pack([1]) + MessagePack.pack(3), :reuse => true) { |obj| objects << obj }
+        objects.should == ['foo', [1], 3]
+      end
+
+      it 'returns an enumerator when no block is given' do
+        subject.stream = StringIO.new(buffer1 + buffer3)
+        subject.each(:reuse => true).map { |obj| obj.keys.first }.should == %w[foo x]
+      end
+    end
+
     context 'with a StringIO stream' do
       it 'yields each object in the stream' do
         objects = []
@@ -131,9 +171,128 @@ describe ::MessagePack::Unpacker do
         end
         objects.should == [{'foo' => 'bar'}, {'hello' => {'world' => [1, 2, 3]}}, {'x' => 'y'}]
       end
+
+      it 'uses the options passed to the constructor' do
+        unpacker = described_class.new(StringIO.new(buffer1), :symbolize_keys => true)
+        unpacker.each.to_a.should == [{:foo => 'bar'}]
+      end
+    end
+
+    context 'with a StringIO that has been read from' do
+      it 'starts at the current position' do
+        io = StringIO.new(buffer1 + buffer2)
+        io.read(buffer1.length)
+        subject.stream = io
+        subject.each.to_a.should == [{'hello' => {'world' => [1, 2, 3]}}]
+      end
+    end
+
+    context 'with a small buffer' do
+      it 'reads objects that are larger than the buffer' do
+        objects = [{'large' => 'x' * 1000}, (0...300).to_a, 'y' * 5000]
+        file = Tempfile.new('msgpack')
+        objects.each { |obj| file.write(MessagePack.pack(obj)) }
+        file.open
+        unpacker = described_class.new(file, :buffer_size => 32)
+        unpacker.each.to_a.should == objects
+      end
+    end
+
+    context 'with an object that responds to #read' do
+      it 'yields each object in the stream' do
+        io = StringIO.new(buffer1 + buffer2 + buffer3)
+        reader = Object.new
+        reader.define_singleton_method(:read) { |size| io.read(size) }
+        subject.stream = reader
+        subject.each.to_a.should == [{'foo' => 'bar'}, {'hello' => {'world' => [1, 2, 3]}}, {'x' => 'y'}]
+      end
     end
   end
-  
+
+  context 'with limits' do
+    it 'raises an error when more data than max_buffer_size is fed' do
+      unpacker = described_class.new(:max_buffer_size => 16)
+      unpacker.feed("\xDA\x00\x20" + 'x' * 8)
+      expect { unpacker.feed('x' * 8) }.to raise_error(MessagePack::UnpackError)
+    end
+
+    it 'raises an error when an object in a stream is larger than max_buffer_size' do
+      io = StringIO.new(MessagePack.pack('x' * 100))
+      reader = Object.new
+      reader.define_singleton_method(:read) { |size| io.read(size) }
+      unpacker = described_class.new(reader, :buffer_size => 16, :max_buffer_size => 64)
+      expect { unpacker.each { } }.to raise_error(MessagePack::UnpackError)
+    end
+
+    it 'applies the limits to each object' do
+      unpacker = described_class.new(:max_array_size => 2)
+      unpacker.feed(MessagePack.pack([1, 2]) + MessagePack.pack([1, 2, 3]))
+      expect { unpacker.each { } }.to raise_error(MessagePack::UnpackError)
+    end
+  end
+
+  describe '.open_mapped' do
+    let :records do
+      (0...200).map { |i| {'id' => i, 'payload' => 'x' * (i % 50)} }
+    end
+
+    let :path do
+      file = Tempfile.new('msgpack')
+      records.each { |record| file.write(MessagePack.pack(record)) }
+      file.close
+      file.path
+    end
+
+    it 'yields each object in the file' do
+      described_class.open_mapped(path) do |unpacker|
+        unpacker.each.to_a.should == records
+      end
+    end
+
+    it 'moves the mapped window through the file' do
+      described_class.open_mapped(path, :window_size => 64) do |unpacker|
+        unpacker.each.to_a.should == records
+      end
+    end
+
+    it 'uses the unpacker options' do
+      described_class.open_mapped(path, :symbolize_keys => true) do |unpacker|
+        unpacker.each.first.should == {:id => 0, :payload => ''}
+      end
+    end
+
+    it 'can resume from a position' do
+      unpacker = described_class.open_mapped(path, :window_size => 64)
+      checkpoint = nil
+      unpacker.each do |record|
+        if record['id'] == 99
+          checkpoint = unpacker.pos
+          break
+        end
+      end
+      unpacker.close
+      unpacker = described_class.open_mapped(path, :window_size => 64)
+      unpacker.seek(checkpoint)
+      unpacker.each.to_a.should == records[100..-1]
+      unpacker.close
+    end
+
+    it 'raises an error when the seek offset is outside of the file' do
+      described_class.open_mapped(path) do |unpacker|
+        expect { unpacker.seek(File.size(path) + 1) }.to raise_error(ArgumentError)
+      end
+    end
+
+    it 'raises an error when the file does not exist' do
+      expect { described_class.open_mapped(path + '.missing') }.to raise_error(Errno::ENOENT)
+    end
+
+    it 'does not support #pos or #seek for other streams' do
+      subject.stream = StringIO.new(buffer1)
+      expect { subject.pos }.to raise_error(IOError)
+    end
+  end
+
   describe '#feed_each' do
     it 'feeds the buffer then runs #each' do
       objects = []
@@ -153,8 +312,152 @@ describe ::MessagePack::Unpacker do
       end
       objects.should == [{'foo' => 'bar'}, {'hello' => {'world' => [1, 2, 3]}}, {'x' => 'y'}]
     end
+
+    it 'handles objects split across many chunks' do
+      objects = []
+      buffer = MessagePack.pack([2**62, 3.14, 'x' * 1000, {'y' => 'z' * 300}])
+      buffer.scan(/.{1,7}/m).each do |chunk|
+        subject.feed_each(chunk) do |obj|
+          objects << obj
+        end
+      end
+      objects.should == [[2**62, 3.14, 'x' * 1000, {'y' => 'z' * 300}]]
+    end
+
+    it 'is not affected by changes to the fed strings' do
+      objects = []
+      chunk = buffer1 + buffer2[0, 5]
+      subject.feed(chunk)
+      chunk.replace(buffer3 * 2)
+      subject.feed_each(buffer2[5..-1]) do |obj|
+        objects << obj
+      end
+      objects.should == [{'foo' => 'bar'}, {'hello' => {'world' => [1, 2, 3]}}]
+    end
   end
-  
+
+  describe '#read_nonblock' do
+    it 'returns the fed objects and then :need_more' do
+      subject.feed(buffer1 + buffer2)
+      subject.read_nonblock.should == {'foo' => 'bar'}
+      subject.read_nonblock.should == {'hello' => {'world' => [1, 2, 3]}}
+      subject.read_nonblock.should == :need_more
+    end
+
+    it 'returns :need_more before anything has been fed' do
+      subject.read_nonblock.should == :need_more
+      subject.bytes_needed.should == 1
+    end
+
+    it 'picks up objects in the middle when more data is fed' do
+      value = {'a' => [1, 'x' * 100, [nil, true, 2**40]], 'b' => 'y' * 70_000, 'c' => {'d' => 3.5}}
+      data = MessagePack.pack(value)
+      results = []
+      data.scan(/.{1,13}/m).each do |chunk|
+        subject.feed(chunk)
+        results << subject.read_nonblock
+      end
+      results.last.should == value
+      results[0...-1].uniq.should == [:need_more]
+    end
+
+    it 'does not return nil for a partial object' do
+      subject.feed("\xC0\x92")
+      subject.read_nonblock.should be_nil
+      subject.read_nonblock.should == :need_more
+      subject.feed("\xC0")
+      subject.read_nonblock.should == [1, nil]
+    end
+
+    it 'skips an object that cannot be decoded and goes on with the next' do
+      subject.feed("\xD4\x7F\x00" + buffer1)
+      expect { subject.each { } }.to raise_error(MessagePack::UnpackError)
+      subject.feed(buffer2)
+      objects = []
+      subject.each { |o| objects << o }
+      objects.should == [{'foo' => 'bar'}, {'hello' => {'world' => [1, 2, 3]}}]
+    end
+
+    it 'skips a broken object that arrived in pieces' do
+      subject.feed("\x92\xD4")
+      subject.read_nonblock.should == :need_more
+      subject.feed("\x7F")
+      subject.read_nonblock.should == :need_more
+      subject.feed("\x00\x01" + buffer1)
+      expect { subject.read_nonblock }.to raise_error(MessagePack::UnpackError)
+      subject.read_nonblock.should == {'foo' => 'bar'}
+      subject.read_nonblock.should == :need_more
+    end
+
+    it 'drops the buffered data when the end of a broken object is unknown' do
+      unpacker = described_class.new(:max_array_size => 1)
+      unpacker.feed("\x92\x01")
+      expect { unpacker.read_nonblock }.to raise_error(MessagePack::UnpackError)
+      unpacker.bytes_needed.should == 1
+      unpacker.feed(buffer1)
+      unpacker.read_nonblock.should == {'foo' => 'bar'}
+    end
+
+    it 'raises an error when reading a stream' do
+      subject.stream = StringIO.new(buffer1)
+      expect { subject.read_nonblock }.to raise_error(IOError)
+      expect { subject.bytes_needed }.to raise_error(IOError)
+    end
+
+    it 'applies the limits as soon as a header arrives' do
+      unpacker = described_class.new(:max_array_size => 10, :max_depth => 2)
+      unpacker.feed("\xDC ")
+      expect { unpacker.read_nonblock }.to raise_error(MessagePack::UnpackError)
+      unpacker = described_class.new(:max_depth => 2)
+      unpacker.feed("\x91\x91\xDC ")
+      expect { unpacker.read_nonblock }.to raise_error(MessagePack::UnpackError)
+    end
+  end
+
+  describe '#bytes_needed' do
+    it 'is zero when an object is complete' do
+      subject.feed(buffer1)
+      subject.bytes_needed.should == 0
+    end
+
+    it 'counts the rest of a header' do
+      subject.feed("\xDA ")
+      subject.bytes_needed.should == 1
+    end
+
+    it 'counts the rest of a string' do
+      subject.feed("\xDA abc")
+      subject.bytes_needed.should == 13
+    end
+
+    it 'counts a byte for every value that has not started' do
+      subject.feed("\x93")
+      subject.bytes_needed.should == 2
+      subject.feed("\x82\xA1a")
+      subject.bytes_needed.should == 4
+    end
+
+    it 'goes down as the object arrives' do
+      data = MessagePack.pack('x' * 1000)
+      subject.feed(data[0, 100])
+      subject.bytes_needed.should == data.bytesize - 100
+      subject.feed(data[100, 800])
+      subject.bytes_needed.should == data.bytesize - 900
+      subject.feed(data[900..-1])
+      subject.bytes_needed.should == 0
+      subject.read_nonblock.should == 'x' * 1000
+      subject.bytes_needed.should == 1
+    end
+
+    it 'starts over after #reset' do
+      subject.feed("\xDA abc")
+      subject.read_nonblock
+      subject.reset
+      subject.feed(buffer1)
+      subject.read_nonblock.should == {'foo' => 'bar'}
+    end
+  end
+
   describe '#fill' do
     it 'is a no-op' do
       subject.stream = StringIO.new(buffer1 + buffer2 + buffer3)
@@ -214,6 +517,19 @@ describe ::MessagePack::Unpacker do
       unpacker.execute(buffer, 0)
       unpacker.data['nested'][1].keys.should == ["sk\xC3\xA5l".force_encoding(Encoding.default_internal)]
     end
+
+    it 'recodes strings that are not ASCII from the specified encoding' do
+      unpacker = described_class.new(:encoding => Encoding::ISO_8859_1)
+      unpacker.execute("\xA3\xE5\xE4\xF6", 0)
+      unpacker.data.should == "\xC3\xA5\xC3\xA4\xC3\xB6".force_encoding(Encoding::UTF_8)
+    end
+
+    it 'does not recode when the internal encoding is the same' do
+      Encoding.default_external = Encoding::UTF_8
+      unpacker = described_class.new
+      unpacker.execute("\xA2\xC3\xA5", 0)
+      unpacker.data.should == "\xC3\xA5".force_encoding(Encoding::UTF_8)
+    end
   end
 
   context 'extensions' do
@@ -249,6 +565,23 @@ describe ::MessagePack::Unpacker do
       end
     end
 
+    context 'key cache' do
+      let :unpacker do
+        described_class.new(:key_cache => 64)
+      end
+
+      it 'reuses the same frozen key for every object' do
+        objs = []
+        unpacker.feed_each(buffer1 * 3) do |obj|
+          objs << obj
+        end
+        keys = objs.map { |obj| obj.keys.first }
+        keys.should == %w[foo foo foo]
+        keys.each { |key| key.should be_frozen }
+        keys.map(&:object_id).uniq.should have(1).item
+      end
+    end
+
     context 'encoding', :encodings do
       let :buffer do
         MessagePack.pack({'hello' => 'world', 'nested' => ['object', {'structure' => true}]})
@@ -1,5 +1,6 @@
 # encoding: ascii-8bit
 
+require 'stringio'
 require 'spec_helper'
 
 
@@ -106,6 +107,491 @@ describe MessagePack do
       pending
       expect { MessagePack.unpack('asdka;sd') }.to raise_error(MessagePack::UnpackError)
     end
+
+    it 'raises an error on #unpack with an illegal type byte' do
+      expect { MessagePack.unpack("\xC1") }.to raise_error(MessagePack::UnpackError)
+    end
+
+    it 'raises an error on #unpack with truncated data' do
+      expect { MessagePack.unpack("\x92\x01") }.to raise_error(MessagePack::UnpackError, /Premature end of data/)
+    end
+  end
+
+  context 'with values that need wider headers' do
+    it 'encodes and decodes long strings' do
+      str = 'x' * 70_000
+      packed = MessagePack.pack(str)
+      packed[0, 5].should == "\xDB\x00\x01\x11\x70"
+      MessagePack.unpack(packed).should == str
+    end
+
+    it 'encodes and decodes large arrays and hashes' do
+      array = (0...20).to_a
+      hash = Hash[array.map { |i| [i.to_s, i] }]
+      MessagePack.pack(array)[0, 3].should == "\xDC\x00\x14"
+      MessagePack.pack(hash)[0, 3].should == "\xDE\x00\x14"
+      MessagePack.unpack(MessagePack.pack([hash] * 3000)).should == [hash] * 3000
+    end
+
+    it 'encodes negative 64 bit integers' do
+      MessagePack.pack(-2**63).should == "\xD3\x80\x00\x00\x00\x00\x00\x00\x00"
+    end
+
+    it 'raises an error for integers that do not fit in 64 bits' do
+      expect { MessagePack.pack(2**64) }.to raise_error(RangeError)
+      expect { MessagePack.pack(-2**63 - 1) }.to raise_error(RangeError)
+    end
+  end
+
+  context 'with extension types' do
+    class ExtPoint
+      attr_reader :x, :y
+
+      def initialize(x, y)
+        @x, @y = x, y
+      end
+
+      def ==(other)
+        other.class == self.class && other.x == x && other.y == y
+      end
+
+      def to_msgpack_ext
+        [x, y].pack('NN')
+      end
+
+      def self.from_msgpack_ext(payload)
+        new(*payload.unpack('NN'))
+      end
+    end
+
+    class ExtPoint3D < ExtPoint
+    end
+
+    class ExtBlob
+      attr_reader :data
+
+      def initialize(data)
+        @data = data
+      end
+    end
+
+    before :all do
+      MessagePack.register_type(10, ExtPoint, :to_msgpack_ext, :from_msgpack_ext)
+      MessagePack.register_type(11, ExtBlob, proc { |b| b.data }, proc { |payload| ExtBlob.new(payload) })
+    end
+
+    it 'packs registered types as ext values' do
+      MessagePack.pack(ExtPoint.new(1, 2)).should == "\xD7\x0A\x00\x00\x00\x01\x00\x00\x00\x02"
+    end
+
+    it 'runs extension unpackers of a batch on the calling thread' do
+      threads = []
+      probe = Class.new
+      MessagePack.register_type(12, probe, proc { |p| '' }, proc { |payload| threads << Thread.current; probe.new })
+      begin
+        MessagePack.unpack_batch([MessagePack.pack(probe.new)] * 1000, :parallelism => 4).size.should == 1000
+        threads.uniq.should == [Thread.current]
+      ensure
+        MessagePack.register_type(12, probe, nil, nil)
+      end
+    end
+
+    it 'unpacks ext values of registered types' do
+      MessagePack.unpack(MessagePack.pack([ExtPoint.new(1, 2), {'p' => ExtPoint.new(3, 4)}])).should == [ExtPoint.new(1, 2), {'p' => ExtPoint.new(3, 4)}]
+    end
+
+    it 'packs subclasses of registered types' do
+      MessagePack.unpack(MessagePack.pack(ExtPoint3D.new(5, 6))).should == ExtPoint.new(5, 6)
+    end
+
+    it 'chooses the smallest ext format for the payload' do
+      {0 => "\xC7\x00\x0B", 1 => "\xD4\x0B", 2 => "\xD5\x0B", 3 => "\xC7\x03\x0B", 4 => "\xD6\x0B", 8 => "\xD7\x0B", 16 => "\xD8\x0B", 300 => "\xC8\x01\x2C\x0B", 70_000 => "\xC9\x00\x01\x11\x70\x0B"}.each do |size, header|
+        packed = MessagePack.pack(ExtBlob.new('x' * size))
+        packed[0, header.size].should == header
+        MessagePack.unpack(packed).data.should == 'x' * size
+      end
+    end
+
+    it 'raises an error when unpacking unregistered ext types' do
+      expect { MessagePack.unpack("\xD4\x7F\x00") }.to raise_error(MessagePack::UnpackError, /Unknown extension type: 127/)
+    end
+
+    it 'can skip over ext values in lazy views' do
+      view = MessagePack.unpack_lazy(MessagePack.pack([ExtBlob.new('x' * 300), 'after']))
+      view[1].should == 'after'
+    end
+
+    it 'raises an error for types out of range' do
+      expect { MessagePack.register_type(128, ExtBlob, :to_s, :new) }.to raise_error(RangeError)
+    end
+  end
+
+  context 'with times' do
+    it 'encodes times with whole seconds as timestamp 32' do
+      MessagePack.pack(Time.at(1)).should == "\xD6\xFF\x00\x00\x00\x01"
+    end
+
+    it 'encodes times with fractional seconds as timestamp 64' do
+      MessagePack.pack(Time.at(1, 500)).should == "\xD7\xFF\x00\x1E\x84\x80\x00\x00\x00\x01"
+    end
+
+    it 'encodes times outside of 34 bits as timestamp 96' do
+      MessagePack.pack(Time.at(-1)).should == "\xC7\x0C\xFF\x00\x00\x00\x00\xFF\xFF\xFF\xFF\xFF\xFF\xFF\xFF"
+      MessagePack.pack(Time.at(2**34)).should == "\xC7\x0C\xFF\x00\x00\x00\x00\x00\x00\x00\x04\x00\x00\x00\x00"
+    end
+
+    it 'decodes all timestamp formats to times' do
+      [Time.at(1), Time.at(1_388_534_400, 123456.789), Time.at(-1, 250_000), Time.at(2**35, 1)].each do |time|
+        unpacked = MessagePack.unpack(MessagePack.pack(time))
+        unpacked.should be_a(Time)
+        unpacked.to_i.should == time.to_i
+        unpacked.nsec.should == time.nsec
+      end
+    end
+
+    it 'raises an error for timestamps with invalid lengths' do
+      expect { MessagePack.unpack("\xD5\xFF\x00\x00") }.to raise_error(MessagePack::UnpackError)
+    end
+  end
+
+  context 'with formats that #pack never produces' do
+    it 'decodes signed integers' do
+      MessagePack.unpack("\xD0\x01").should == 1
+      MessagePack.unpack("\xD1\x01\x00").should == 256
+      MessagePack.unpack("\xD2\xFF\xFF\xFF\xFF").should == -1
+      MessagePack.unpack("\xD3\x00\x00\x00\x01\x00\x00\x00\x00").should == 2**32
+    end
+
+    it 'decodes single precision floats' do
+      MessagePack.unpack("\xCA\x3F\xC0\x00\x00").should == 1.5
+    end
+
+    it 'decodes 16 bit raw, array and map headers' do
+      MessagePack.unpack("\xDA\x00\x03foo").should == 'foo'
+      MessagePack.unpack("\xDC\x00\x02\x01\x02").should == [1, 2]
+      MessagePack.unpack("\xDE\x00\x01\xA1a\x01").should == {'a' => 1}
+    end
+  end
+
+  context 'with binary strings' do
+    let :blob do
+      (0...300).map { |i| (i % 256).chr }.join
+    end
+
+    it 'packs them as raw by default' do
+      MessagePack.pack("\xFF\x00").should == "\xA2\xFF\x00"
+    end
+
+    it 'packs them as bin with :binary => true' do
+      MessagePack.pack("\xFF\x00", :binary => true).should == "\xC4\x02\xFF\x00"
+      MessagePack.pack(blob, :binary => true)[0, 3].should == "\xC5\x01\x2C"
+      MessagePack.pack("\x00" * 70_000, :binary => true)[0, 5].should == "\xC6\x00\x01\x11\x70"
+    end
+
+    it 'packs other strings with str8 when binary formats are allowed' do
+      MessagePack.pack(('x' * 40).force_encoding(Encoding::UTF_8), :binary => true).should == "\xD9\x28" + 'x' * 40
+      MessagePack.pack(('x' * 20).force_encoding(Encoding::UTF_8), :binary => true).should == "\xB4" + 'x' * 20
+    end
+
+    it 'unpacks bin as ASCII-8BIT strings' do
+      unpacked = MessagePack.unpack(MessagePack.pack(blob, :binary => true))
+      unpacked.should == blob
+      unpacked.encoding.should == Encoding::BINARY
+      MessagePack.unpack("\xC4\x02ab").should == 'ab'
+      MessagePack.unpack("\xC5\x00\x02ab").should == 'ab'
+      MessagePack.unpack("\xC6\x00\x00\x00\x02ab").should == 'ab'
+    end
+
+    it 'unpacks str8' do
+      MessagePack.unpack("\xD9\x03foo").should == 'foo'
+      MessagePack.unpack("\x81\xD9\x03foo\x01", :symbolize_keys => true).should == {:foo => 1}
+    end
+
+    it 'unpacks bin values that are copies of the input' do
+      packed = MessagePack.pack(blob, :binary => true)
+      unpacked = MessagePack.unpack(packed)
+      unpacked[0] = 'x'
+      packed[3] = 'y'
+      MessagePack.unpack(packed)[0].should == 'y'
+      unpacked.should == 'x' + blob[1..-1]
+    end
+
+    it 'unpacks bin values that span fed chunks' do
+      packed = MessagePack.pack([blob, "\x01\x02"], :binary => true)
+      unpacker = MessagePack::Unpacker.new
+      objects = []
+      packed.bytes.each_slice(100) { |chunk| unpacker.feed_each(chunk.pack('C*')) { |obj| objects << obj } }
+      objects.should == [[blob, "\x01\x02"]]
+    end
+
+    it 'skips bin and str8 values in lazy views' do
+      view = MessagePack.unpack_lazy(MessagePack.pack({'data' => blob, 'name' => ('n' * 40).force_encoding(Encoding::UTF_8), 'id' => 1}, :binary => true))
+      view['id'].should == 1
+      view['name'].should == 'n' * 40
+    end
+  end
+
+  context 'with binary strings and a different external encoding', :encodings do
+    before do
+      @default_external = Encoding.default_external
+      Encoding.default_external = Encoding::UTF_8
+    end
+
+    after do
+      Encoding.default_external = @default_external
+    end
+
+    it 'does not transcode ASCII-8BIT strings' do
+      MessagePack.pack("\xFF\xFE").should == "\xA2\xFF\xFE"
+      MessagePack.pack("\xFF\xFE", :binary => true).should == "\xC4\x02\xFF\xFE"
+    end
+
+    it 'does not transcode bin values' do
+      MessagePack.unpack("\xC4\x02\xFF\xFE").encoding.should == Encoding::BINARY
+    end
+  end
+
+  context 'with integer arrays' do
+    let :integers do
+      [0, 1, 127, 128, 255, 256, 4095, 4096, 65535, 65536, 2**32 - 1, 2**32, 2**63 - 1, 2**64 - 1,
+       -1, -32, -33, -128, -129, -1024, -1025, -32768, -32769, -2**31, -2**31 - 1, -2**63]
+    end
+
+    it 'unpacks every integer format' do
+      MessagePack.unpack(MessagePack.pack(integers)).should == integers
+      MessagePack.unpack(MessagePack.pack(integers.reverse)).should == integers.reverse
+    end
+
+    it 'unpacks arrays that mix integers with other values' do
+      mixed = [1, 2**64 - 1, 3, 'four', 5, nil, [6, 7], 8.0]
+      MessagePack.unpack(MessagePack.pack(mixed)).should == mixed
+    end
+
+    it 'unpacks integers from the end of the data' do
+      MessagePack.unpack("\x93\x01\xCD\x01\x00\xD3\xFF\xFF\xFF\xFF\xFF\xFF\xFF\xFF").should == [1, 256, -1]
+    end
+
+    it 'unpacks integer arrays that span fed chunks' do
+      packed = MessagePack.pack(integers * 10)
+      unpacker = MessagePack::Unpacker.new
+      objects = []
+      packed.bytes.each_slice(13) { |chunk| unpacker.feed_each(chunk.pack('C*')) { |obj| objects << obj } }
+      objects.should == [integers * 10]
+    end
+  end
+
+  context 'with containers to unpack into' do
+    it 'clears and fills a hash' do
+      hash = {'old' => 1}
+      MessagePack.unpack_into(hash, MessagePack.pack('a' => 1, 'b' => [2])).should equal(hash)
+      hash.should == {'a' => 1, 'b' => [2]}
+    end
+
+    it 'clears and fills an array' do
+      array = [1, 2, 3, 4]
+      MessagePack.unpack_into(array, MessagePack.pack(['a', {'b' => 2}])).should equal(array)
+      array.should == ['a', {'b' => 2}]
+      MessagePack.unpack_into(array, MessagePack.pack([1, 2, 3])).should == [1, 2, 3]
+    end
+
+    it 'uses the unpack options' do
+      hash = {}
+      MessagePack.unpack_into(hash, MessagePack.pack('a' => 1), :symbolize_keys => true)
+      hash.should == {:a => 1}
+    end
+
+    it 'raises an error when the data does not match the container' do
+      expect { MessagePack.unpack_into({}, MessagePack.pack([1])) }.to raise_error(MessagePack::UnpackError)
+      expect { MessagePack.unpack_into([], MessagePack.pack('a' => 1)) }.to raise_error(MessagePack::UnpackError)
+      expect { MessagePack.unpack_into('', MessagePack.pack([1])) }.to raise_error(TypeError)
+    end
+  end
+
+  context 'with large maps' do
+    it 'unpacks every entry' do
+      hash = Hash[(0...5000).map { |i| ["key#{i}", i] }]
+      MessagePack.unpack(MessagePack.pack(hash)).should == hash
+    end
+  end
+
+  context 'with batches' do
+    let :records do
+      (0...1000).map { |i| {'id' => i, 'name' => "record #{i}", 'values' => [i, i * 2.5, nil]} }
+    end
+
+    it 'unpacks an array of packed records in order' do
+      MessagePack.unpack_batch(records.map { |r| MessagePack.pack(r) }).should == records
+    end
+
+    it 'unpacks a string of concatenated records in order' do
+      MessagePack.unpack_batch(records.map { |r| MessagePack.pack(r) }.join, :parallelism => 3).should == records
+    end
+
+    it 'uses the unpack options' do
+      unpacked = MessagePack.unpack_batch([MessagePack.pack('a' => 1)], :symbolize_keys => true)
+      unpacked.should == [{:a => 1}]
+    end
+
+    it 'returns an empty array for an empty batch' do
+      MessagePack.unpack_batch([]).should == []
+      MessagePack.unpack_batch('').should == []
+    end
+
+    it 'raises an error when a record is truncated' do
+      packed = records.map { |r| MessagePack.pack(r) }
+      expect { MessagePack.unpack_batch(packed.join[0..-2]) }.to raise_error(MessagePack::UnpackError)
+      packed[500] = packed[500][0, 5]
+      expect { MessagePack.unpack_batch(packed) }.to raise_error(MessagePack::UnpackError)
+    end
+
+    it 'raises an error when the parallelism is not positive' do
+      expect { MessagePack.unpack_batch([], :parallelism => 0) }.to raise_error(ArgumentError)
+    end
+
+    it 'stops its threads when the runtime is torn down' do
+      workers = lambda { java.lang.Thread.getAllStackTraces.keySet.to_a.map(&:getName).grep(/^msgpack-worker-/) }
+      runtime = org.jruby.Ruby.newInstance
+      runtime.getLoadService.addPaths($LOAD_PATH.to_java(:string))
+      runtime.evalScriptlet("require 'msgpack'; MessagePack.unpack_batch([MessagePack.pack(1)] * 1000, :parallelism => 2)")
+      name = "msgpack-worker-#{runtime.getRuntimeNumber}-"
+      workers.call.grep(/^#{name}/).should_not be_empty
+      runtime.tearDown
+      sleep 0.1 until workers.call.grep(/^#{name}/).empty?
+    end
+  end
+
+  context 'with limits' do
+    it 'waits for the data when a length is larger than what has been fed, instead of allocating it' do
+      unpacker = MessagePack::Unpacker.new
+      ["\xDD\x7F\xFF\xFF\xFF\x01", "\xDF\x7F\xFF\xFF\xFF\x01\x02", "\xDB\x7F\xFF\xFF\xFFabc"].each do |data|
+        unpacker.reset
+        unpacker.feed_each(data) { |obj| fail }
+      end
+    end
+
+    it 'limits the nesting depth' do
+      packed = MessagePack.pack([[[1]]])
+      MessagePack.unpack(packed, :max_depth => 3).should == [[[1]]]
+      expect { MessagePack.unpack(packed, :max_depth => 2) }.to raise_error(MessagePack::UnpackError)
+    end
+
+    it 'limits the size of arrays, maps and strings' do
+      expect { MessagePack.unpack(MessagePack.pack([1, 2, 3]), :max_array_size => 2) }.to raise_error(MessagePack::UnpackError)
+      expect { MessagePack.unpack(MessagePack.pack('a' => 1, 'b' => 2), :max_map_size => 1) }.to raise_error(MessagePack::UnpackError)
+      expect { MessagePack.unpack(MessagePack.pack('abc'), :max_string_size => 2) }.to raise_error(MessagePack::UnpackError)
+      MessagePack.unpack(MessagePack.pack(['ab']), :max_array_size => 1, :max_string_size => 2).should == ['ab']
+    end
+
+    it 'limits the size of the input' do
+      packed = MessagePack.pack('x' * 100)
+      expect { MessagePack.unpack(packed, :max_bytes => 64) }.to raise_error(MessagePack::UnpackError)
+      expect { MessagePack.unpack_batch([packed], :max_bytes => 64) }.to raise_error(MessagePack::UnpackError)
+      expect { MessagePack.unpack_batch(packed * 2, :max_bytes => 64) }.to raise_error(MessagePack::UnpackError)
+    end
+
+    it 'limits the size of each value in a batch' do
+      small = (0...100).map { |i| MessagePack.pack('x' * 10) }
+      MessagePack.unpack_batch(small, :max_bytes => 16).size.should == 100
+      MessagePack.unpack_batch(small.join, :max_bytes => 16).size.should == 100
+    end
+
+    it 'limits the nesting depth to 512 by default' do
+      deep = "\x91" * 100_000 + "\x00"
+      expect { MessagePack.unpack(deep) }.to raise_error(MessagePack::UnpackError)
+      unpacker = MessagePack::Unpacker.new
+      expect { unpacker.feed_each(deep) { } }.to raise_error(MessagePack::UnpackError)
+      expect { MessagePack::Unpacker.new(StringIO.new(deep)).each { } }.to raise_error(MessagePack::UnpackError)
+      MessagePack.unpack("\x91" * 512 + "\x00").flatten.should == [0]
+      MessagePack.unpack("\x91" * 1000 + "\x00", :max_depth => 1000).flatten.should == [0]
+    end
+
+    it 'raises an error when a limit is negative' do
+      expect { MessagePack.unpack("\x90", :max_depth => -1) }.to raise_error(ArgumentError)
+    end
+  end
+
+  context 'with stats' do
+    before do
+      MessagePack.enable_stats
+      MessagePack.reset_stats
+    end
+
+    after do
+      MessagePack.disable_stats
+    end
+
+    it 'counts the bytes and values that are packed and unpacked' do
+      packed = MessagePack.pack('hello' => [1, 2.5, nil, true])
+      MessagePack.unpack(packed)
+      stats = MessagePack.stats
+      stats[:values_packed].should == 1
+      stats[:bytes_packed].should == packed.bytesize
+      stats[:values_unpacked].should == 1
+      stats[:bytes_unpacked].should == packed.bytesize
+    end
+
+    it 'counts the unpacked objects by type' do
+      MessagePack.unpack(MessagePack.pack('hello' => [1, 2.5, nil, true, 'x', {}]))
+      MessagePack.stats[:objects_unpacked].should == {:nil => 1, :boolean => 1, :integer => 1, :float => 1, :string => 2, :array => 1, :map => 2, :extension => 0, :binary => 0}
+    end
+
+    it 'counts cached keys as strings' do
+      packed = MessagePack.pack('a' => 1, 'b' => 2)
+      2.times { MessagePack.unpack(packed, :key_cache => 16) }
+      MessagePack.stats[:objects_unpacked][:string].should == 4
+    end
+
+    it 'counts the bytes of values that span fed chunks' do
+      packed = MessagePack.pack('x' * 100)
+      unpacker = MessagePack::Unpacker.new
+      packed.bytes.each_slice(7) { |chunk| unpacker.feed_each(chunk.pack('C*')) { } }
+      MessagePack.stats[:bytes_unpacked].should == packed.bytesize
+      MessagePack.stats[:values_unpacked].should == 1
+    end
+
+    it 'records the latency of each call in a histogram' do
+      3.times { MessagePack.unpack(MessagePack.pack([1, 2, 3])) }
+      MessagePack.stats[:pack_latency].values.inject(:+).should == 3
+      MessagePack.stats[:unpack_latency].values.inject(:+).should == 3
+    end
+
+    it 'counts buffer growth' do
+      MessagePack.pack('x' * (2 << 20))
+      MessagePack.stats[:buffer_growths].should > 0
+    end
+
+    it 'tracks the high water mark of fed data' do
+      unpacker = MessagePack::Unpacker.new
+      unpacker.feed(MessagePack.pack('x' * 100)[0, 50])
+      unpacker.feed('x' * 30)
+      unpacker.buffer_high_water_mark.should == 80
+      MessagePack.stats[:feed_buffer_high_water_mark].should >= 80
+    end
+
+    it 'registers an MBean' do
+      server = java.lang.management.ManagementFactory.platform_mbean_server
+      names = server.query_names(javax.management.ObjectName.new('org.msgpack.jruby:type=Metrics,*'), nil)
+      names.size.should > 0
+    end
+
+    it 'counts nothing when disabled' do
+      MessagePack.disable_stats
+      MessagePack.unpack(MessagePack.pack([1, 2, 3]))
+      MessagePack.stats[:values_packed].should == 0
+      MessagePack.stats[:values_unpacked].should == 0
+    end
+  end
+
+  context 'with many threads' do
+    it 'packs and unpacks concurrently' do
+      objects = (0...8).map { |i| {"thread#{i}" => [i, 'x' * i, {'nested' => i * 1.5}]} }
+      results = objects.map do |obj|
+        Thread.new do
+          (0...500).map { MessagePack.unpack(MessagePack.pack(obj), :key_cache => 16) }.uniq
+        end
+      end.map(&:value)
+      results.should == objects.map { |obj| [obj] }
+    end
   end
 
   context 'extensions' do
@@ -115,6 +601,34 @@ describe MessagePack do
       unpacked.should == {:hello => 'world', :nested => ['object', {:structure => true}]}
     end
 
+    it 'can reuse frozen hash keys between calls' do
+      packed = MessagePack.pack([{'hello' => 'world'}, {'hello' => 'there'}])
+      first, second = MessagePack.unpack(packed, :key_cache => 16)
+      third = MessagePack.unpack(packed, :key_cache => 16).first
+      first.keys.first.should be_frozen
+      first.keys.first.should equal(second.keys.first)
+      first.keys.first.should equal(third.keys.first)
+      first['hello'].should_not be_frozen
+    end
+
+    it 'can reuse symbolized hash keys' do
+      packed = MessagePack.pack([{'hello' => 'world'}, {'hello' => 'there'}])
+      unpacked = MessagePack.unpack(packed, :key_cache => true, :symbolize_keys => true)
+      unpacked.should == [{:hello => 'world'}, {:hello => 'there'}]
+    end
+
+    it 'does not mix up keys that collide in the cache' do
+      packed = MessagePack.pack((0...100).map { |i| {"key#{i}" => i} })
+      unpacked = MessagePack.unpack(packed, :key_cache => 2)
+      unpacked.should == (0...100).map { |i| {"key#{i}" => i} }
+    end
+
+    it 'can freeze all strings' do
+      unpacked = MessagePack.unpack(MessagePack.pack('hello' => ['world']), :freeze => true)
+      unpacked.keys.first.should be_frozen
+      unpacked['hello'].first.should be_frozen
+    end
+
     it 'can unpack strings with a specified encoding', :encodings do
       packed = MessagePack.pack({'hello' => 'world'})
       unpacked = MessagePack.unpack(packed, :encoding => Encoding::UTF_8)